@@ -11,7 +11,7 @@ LOCAL_SRC_FILES := $(call all-java-files-under, src) \
 LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/lib/termux-styling/res \
         $(LOCAL_PATH)/lib/terminal-view/res $(LOCAL_PATH)/res
 
-LOCAL_AAPT_FLAGS := --auto-add-overlay
+LOCAL_AAPT_FLAGS := --auto-add-overlay -0 zip -0 img
 
 LOCAL_OVERRIDES_PACKAGES := TermuxStyling OtoTerminal
 
@@ -28,3 +28,10 @@ LOCAL_SRC_FILES := lib/terminal-emulator/jni/termux.c
 LOCAL_MODULE_TAGS := optional
 LOCAL_ARM_MODE := x86_64
 include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+LOCAL_CFLAGS := -std=c11  -Wall  -Wextra  -Werror  -O2
+LOCAL_MODULE := termux-subprocess-benchmark
+LOCAL_SRC_FILES := lib/terminal-emulator/jni/subprocess_benchmark.c
+LOCAL_MODULE_TAGS := tests
+include $(BUILD_EXECUTABLE)
@@ -0,0 +1,108 @@
+/*
+ * Microbenchmark of session start latency: times create_subprocess() of termux.c from the call until the started
+ * process has exited, which includes opening the pty, vfork(), closing inherited file descriptors in the child and
+ * exec. Built as the termux-subprocess-benchmark test executable by Android.mk, or on a Linux host with e.g.
+ *
+ *   cc -std=c11 -D_GNU_SOURCE -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *       lib/terminal-emulator/jni/subprocess_benchmark.c -o subprocess_benchmark
+ *
+ * Usage: subprocess_benchmark [-n runs] [-f open_fds] [command [arguments...]]
+ *
+ * The command, which defaults to true(1) found through $PATH, should exit right away without output. open_fds extra
+ * file descriptors without FD_CLOEXEC are opened first, since an app process has many which the child has to close.
+ */
+#include "termux.c"
+
+#include <time.h>
+
+extern char** environ;
+
+// The JNI function table is named differently by the Android and OpenJDK headers:
+#ifdef __ANDROID__
+typedef struct JNINativeInterface JniFunctions;
+#else
+typedef struct JNINativeInterface_ JniFunctions;
+#endif
+
+/** Stands in for the JNI exception functions used by termux.c, which are only called when starting a process fails. */
+static jclass benchmark_find_class(JNIEnv* TERMUX_UNUSED(env), char const* TERMUX_UNUSED(name))
+{
+    return NULL;
+}
+
+static jint benchmark_throw_new(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), char const* message)
+{
+    fprintf(stderr, "create_subprocess() failed: %s: %s\n", message, strerror(errno));
+    exit(1);
+}
+
+static int64_t now_nanos(void)
+{
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000 + now.tv_nsec;
+}
+
+static int compare_nanos(void const* a, void const* b)
+{
+    int64_t x = *(int64_t const*) a, y = *(int64_t const*) b;
+    return (x > y) - (x < y);
+}
+
+int main(int argc, char** argv)
+{
+    int runs = 1000, open_fds = 200, opt;
+    // Stop at the command, whose arguments are not options of the benchmark:
+    while ((opt = getopt(argc, argv, "+n:f:")) != -1) {
+        switch (opt) {
+            case 'n': runs = atoi(optarg); break;
+            case 'f': open_fds = atoi(optarg); break;
+            default:
+                fprintf(stderr, "Usage: %s [-n runs] [-f open_fds] [command [arguments...]]\n", argv[0]);
+                return 1;
+        }
+    }
+    if (runs <= 0) runs = 1;
+
+    char* default_command[] = { "true", NULL };
+    char** command = (optind < argc) ? &argv[optind] : default_command;
+
+    for (int i = 0; i < open_fds; i++) {
+        if (open("/dev/null", O_RDONLY) < 0) {
+            perror("open(\"/dev/null\")");
+            return 1;
+        }
+    }
+
+    JniFunctions functions;
+    memset(&functions, 0, sizeof(functions));
+    functions.FindClass = benchmark_find_class;
+    functions.ThrowNew = benchmark_throw_new;
+    JNIEnv env = &functions;
+
+    int64_t* samples = (int64_t*) malloc(runs * sizeof(int64_t));
+    if (samples == NULL) return 1;
+    int64_t total = 0;
+    for (int i = 0; i < runs; i++) {
+        int pid;
+        int64_t start = now_nanos();
+        int ptm = create_subprocess(&env, command[0], "/", command, environ, &pid, 24, 80);
+        int status;
+        waitpid(pid, &status, 0);
+        samples[i] = now_nanos() - start;
+        total += samples[i];
+        close(ptm);
+        if (!WIFEXITED(status) || WEXITSTATUS(status) != 0) {
+            fprintf(stderr, "%s did not exit with status 0\n", command[0]);
+            return 1;
+        }
+    }
+
+    qsort(samples, runs, sizeof(int64_t), compare_nanos);
+    printf("%s: %d runs with %d extra open fds, close_range %s\n", command[0], runs, open_fds,
+            close_range_allowed() ? "used" : "not used");
+    printf("min %.1f us, median %.1f us, mean %.1f us, max %.1f us\n", samples[0] / 1000.0, samples[runs / 2] / 1000.0,
+            total / 1000.0 / runs, samples[runs - 1] / 1000.0);
+    free(samples);
+    return 0;
+}
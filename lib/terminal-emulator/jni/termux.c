@@ -1,19 +1,40 @@
-#include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
+#include <limits.h>
+#include <pthread.h>
 #include <signal.h>
+#include <stdbool.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <sys/ioctl.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <sys/uio.h>
 #include <sys/wait.h>
 #include <termios.h>
 #include <unistd.h>
+#ifdef __ANDROID__
+# include <sys/system_properties.h>
+#endif
 
 #define TERMUX_UNUSED(x) x __attribute__((__unused__))
 #ifdef __APPLE__
 # define LACKS_PTSNAME_R
 #endif
+// Same on all architectures, but missing from older headers.
+#ifndef __NR_pidfd_open
+# define __NR_pidfd_open 434
+#endif
+#ifndef __NR_close_range
+# define __NR_close_range 436
+#endif
+/** The maximum number of events returned by a single JNI epollWait() call. */
+#define TERMUX_MAX_EPOLL_EVENTS 64
 
 static int throw_runtime_exception(JNIEnv* env, char const* message)
 {
@@ -22,6 +43,131 @@ static int throw_runtime_exception(JNIEnv* env, char const* message)
     return -1;
 }
 
+/** Write an error message about a failed system call in the child process, without allocating memory. */
+static void write_child_error(char const* call, char const* argument)
+{
+    char const* error = strerror(errno);
+    char const* parts[] = { call, "(\"", argument, "\"): ", error, "\r\n" };
+    for (size_t i = 0; i < sizeof(parts) / sizeof(parts[0]); i++) {
+        ssize_t TERMUX_UNUSED(result) = write(STDERR_FILENO, parts[i], strlen(parts[i]));
+    }
+}
+
+/**
+ * Find the executable to run in the same way as execvp(3) would have with the environment of the new process, writing
+ * the full path to result. Returns 0 on success and -1 if cmd should be used as is.
+ */
+static int resolve_executable(char const* cmd, char** envp, char* result, size_t result_size)
+{
+    if (strchr(cmd, '/') != NULL || envp == NULL) return -1;
+    char const* path = NULL;
+    for (char** var = envp; *var; var++) {
+        if (strncmp(*var, "PATH=", 5) == 0) path = *var + 5;
+    }
+    if (path == NULL) return -1;
+
+    while (*path) {
+        char const* end = strchr(path, ':');
+        size_t dir_length = end ? (size_t) (end - path) : strlen(path);
+        if (dir_length > 0 && (size_t) snprintf(result, result_size, "%.*s/%s", (int) dir_length, path, cmd) < result_size
+                && access(result, X_OK) == 0) {
+            return 0;
+        }
+        if (!end) break;
+        path = end + 1;
+    }
+    return -1;
+}
+
+/** Whether close_range(2) may be used, which apps are only allowed by the seccomp filter of newer Android versions. */
+static bool close_range_allowed(void)
+{
+#ifdef __ANDROID__
+    static int sdk_version = -1;
+    if (sdk_version < 0) {
+        char value[PROP_VALUE_MAX];
+        sdk_version = (__system_property_get("ro.build.version.sdk", value) > 0) ? atoi(value) : 0;
+    }
+    return sdk_version >= 34;
+#else
+    return true;
+#endif
+}
+
+/**
+ * Close all file descriptors above stderr in the child process after vfork(), which has its own copy of the descriptor
+ * table so that descriptors opened meanwhile by other threads of the parent are closed as well. Reads /proc/self/fd with
+ * getdents64(2) into a buffer on the stack since the child may not allocate memory, and closes every descriptor below
+ * max_fd if that is not possible.
+ */
+static void close_fds_in_child(int max_fd)
+{
+#ifdef __linux__
+    int dir_fd = open("/proc/self/fd", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (dir_fd >= 0) {
+        struct linux_dirent64 {
+            uint64_t d_ino;
+            int64_t d_off;
+            unsigned short d_reclen;
+            unsigned char d_type;
+            char d_name[];
+        };
+        char buffer[4096] __attribute__((aligned(8)));
+        long read_bytes;
+        // Closing descriptors while reading is fine since the directory is read in order of descriptor number:
+        while ((read_bytes = syscall(SYS_getdents64, dir_fd, buffer, sizeof(buffer))) > 0) {
+            for (long offset = 0; offset < read_bytes;) {
+                struct linux_dirent64* entry = (struct linux_dirent64*) (buffer + offset);
+                offset += entry->d_reclen;
+                if (entry->d_name[0] < '0' || entry->d_name[0] > '9') continue;
+                int fd = 0;
+                for (char const* digit = entry->d_name; *digit; digit++) fd = 10 * fd + (*digit - '0');
+                if (fd > 2 && fd != dir_fd) close(fd);
+            }
+        }
+        close(dir_fd);
+        if (read_bytes == 0) return;
+    }
+#endif
+    for (int fd = 3; fd < max_fd; fd++) close(fd);
+}
+
+/**
+ * Set up the terminal, file descriptors and signals of the child process after vfork() and exec the command. Runs in
+ * the memory of the parent, so may only call async-signal-safe functions and never returns.
+ */
+__attribute__((noinline, noreturn))
+static void exec_in_child(int ptm, char const* devname, char const* cwd, char const* cmd, char const* resolved_cmd,
+        char* const* argv, char* const* envp, bool use_close_range, int max_fd)
+{
+    for (int signal_number = 1; signal_number < NSIG; signal_number++) {
+        struct sigaction default_action = { .sa_handler = SIG_DFL };
+        sigaction(signal_number, &default_action, NULL);
+    }
+    // Clear signals which the Android java process may have blocked:
+    sigset_t signals_to_unblock;
+    sigfillset(&signals_to_unblock);
+    sigprocmask(SIG_UNBLOCK, &signals_to_unblock, 0);
+
+    close(ptm);
+    setsid();
+
+    int pts = open(devname, O_RDWR);
+    if (pts < 0) _exit(-1);
+
+    dup2(pts, 0);
+    dup2(pts, 1);
+    dup2(pts, 2);
+
+    if (!use_close_range || syscall(__NR_close_range, 3, ~0U, 0) != 0) close_fds_in_child(max_fd);
+
+    if (chdir(cwd) != 0) write_child_error("chdir", cwd);
+    execve(resolved_cmd, argv, envp);
+    // Show terminal output about failing exec() call:
+    write_child_error("exec", cmd);
+    _exit(1);
+}
+
 static int create_subprocess(JNIEnv* env,
         char const* cmd,
         char const* cwd,
@@ -60,56 +206,41 @@ static int create_subprocess(JNIEnv* env,
     struct winsize sz = { .ws_row = (unsigned short) rows, .ws_col = (unsigned short) columns };
     ioctl(ptm, TIOCSWINSZ, &sz);
 
-    pid_t pid = fork();
-    if (pid < 0) {
-        return throw_runtime_exception(env, "Fork failed");
-    } else if (pid > 0) {
-        *pProcessId = (int) pid;
-        return ptm;
-    } else {
-        // Clear signals which the Android java process may have blocked:
-        sigset_t signals_to_unblock;
-        sigfillset(&signals_to_unblock);
-        sigprocmask(SIG_UNBLOCK, &signals_to_unblock, 0);
-
-        close(ptm);
-        setsid();
-
-        int pts = open(devname, O_RDWR);
-        if (pts < 0) exit(-1);
-
-        dup2(pts, 0);
-        dup2(pts, 1);
-        dup2(pts, 2);
-
-        DIR* self_dir = opendir("/proc/self/fd");
-        if (self_dir != NULL) {
-            int self_dir_fd = dirfd(self_dir);
-            struct dirent* entry;
-            while ((entry = readdir(self_dir)) != NULL) {
-                int fd = atoi(entry->d_name);
-                if(fd > 2 && fd != self_dir_fd) close(fd);
-            }
-            closedir(self_dir);
-        }
+    // Resolve the executable against the PATH of the new environment here, since the child should do as little as
+    // possible after vfork() - in particular it may not allocate memory.
+    char resolved_cmd[PATH_MAX];
+    if (resolve_executable(cmd, envp, resolved_cmd, sizeof(resolved_cmd)) != 0) {
+        strncpy(resolved_cmd, cmd, sizeof(resolved_cmd) - 1);
+        resolved_cmd[sizeof(resolved_cmd) - 1] = '\0';
+    }
+    char* default_argv[] = { (char*) cmd, NULL };
+    char* empty_envp[] = { NULL };
+    // Volatile so that the values are not kept in registers which vfork() may clobber:
+    char* const* volatile exec_argv = argv ? argv : default_argv;
+    char* const* volatile exec_envp = envp ? envp : empty_envp;
 
-        clearenv();
-        if (envp) for (; *envp; ++envp) putenv(*envp);
+    // The limit on file descriptors to close in the child if neither close_range(2) nor /proc/self/fd can be used:
+    bool use_close_range = close_range_allowed();
+    struct rlimit fd_limit;
+    int max_fd = (getrlimit(RLIMIT_NOFILE, &fd_limit) == 0 && fd_limit.rlim_cur != RLIM_INFINITY
+            && fd_limit.rlim_cur < INT_MAX) ? (int) fd_limit.rlim_cur : 1024;
 
-        if (chdir(cwd) != 0) {
-            char* error_message;
-            // No need to free asprintf()-allocated memory since doing execvp() or exit() below.
-            if (asprintf(&error_message, "chdir(\"%s\")", cwd) == -1) error_message = "chdir()";
-            perror(error_message);
-            fflush(stderr);
-        }
-        execvp(cmd, argv);
-        // Show terminal output about failing exec() call:
-        char* error_message;
-        if (asprintf(&error_message, "exec(\"%s\")", cmd) == -1) error_message = "exec()";
-        perror(error_message);
-        _exit(1);
+    // Block all signals so that no handler of the Android java process runs in the child, which shares its memory
+    // until exec. The child resets the handlers to their default before unblocking them.
+    sigset_t all_signals, old_signals;
+    sigfillset(&all_signals);
+    pthread_sigmask(SIG_SETMASK, &all_signals, &old_signals);
+
+    pid_t pid = vfork();
+    if (pid == 0) {
+        exec_in_child(ptm, devname, cwd, cmd, resolved_cmd, exec_argv, exec_envp, use_close_range, max_fd);
     }
+
+    pthread_sigmask(SIG_SETMASK, &old_signals, NULL);
+
+    if (pid < 0) return throw_runtime_exception(env, "Fork failed");
+    *pProcessId = (int) pid;
+    return ptm;
 }
 
 JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_createSubprocess(
@@ -216,3 +347,173 @@ JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_close(JNIEnv* TERMUX_UNUSED(
 {
     close(fileDescriptor);
 }
+
+JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_setNonBlocking(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fd)
+{
+    int flags = fcntl(fd, F_GETFL);
+    if (flags != -1 && (flags & O_NONBLOCK) == 0) fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+}
+
+static int setup_iovecs(JNIEnv* env, jobject buffer, jint offset1, jint length1, jint offset2, jint length2, struct iovec* iov)
+{
+    char* address = (char*) (*env)->GetDirectBufferAddress(env, buffer);
+    if (address == NULL) return throw_runtime_exception(env, "Not a direct buffer");
+    iov[0].iov_base = address + offset1;
+    iov[0].iov_len = (size_t) length1;
+    iov[1].iov_base = address + offset2;
+    iov[1].iov_len = (size_t) length2;
+    return (length2 > 0) ? 2 : 1;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_readv(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jobject buffer, jint offset1, jint length1, jint offset2, jint length2)
+{
+    struct iovec iov[2];
+    int iov_count = setup_iovecs(env, buffer, offset1, length1, offset2, length2, iov);
+    if (iov_count < 0) return -1;
+    ssize_t bytes_read;
+    do {
+        bytes_read = readv(fd, iov, iov_count);
+    } while (bytes_read < 0 && errno == EINTR);
+    return (bytes_read < 0) ? -errno : (jint) bytes_read;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_writev(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jobject buffer, jint offset1, jint length1, jint offset2, jint length2)
+{
+    struct iovec iov[2];
+    int iov_count = setup_iovecs(env, buffer, offset1, length1, offset2, length2, iov);
+    if (iov_count < 0) return -1;
+    ssize_t bytes_written;
+    do {
+        bytes_written = writev(fd, iov, iov_count);
+    } while (bytes_written < 0 && errno == EINTR);
+    return (bytes_written < 0) ? -errno : (jint) bytes_written;
+}
+
+/** States of the escape sequence scanner, in the low bits of the state value passed to and from scanOutput(). */
+enum {
+    SCAN_GROUND = 0,
+    SCAN_ESC = 1,
+    SCAN_ESC_INTERMEDIATE = 2,
+    SCAN_CSI = 3,
+    SCAN_STRING = 4,
+    SCAN_STRING_ESC = 5,
+};
+/** The number of UTF-8 continuation bytes still expected is kept in the state value above this shift. */
+#define SCAN_UTF8_SHIFT 4
+
+static int scan_bytes(unsigned char const* bytes, size_t length, int state, int utf8_remaining)
+{
+    for (size_t i = 0; i < length; i++) {
+        unsigned char b = bytes[i];
+        if (utf8_remaining > 0) {
+            if ((b & 0xC0) == 0x80) {
+                utf8_remaining--;
+                continue;
+            }
+            // Not a continuation byte, which the emulator replaces and then processes normally:
+            utf8_remaining = 0;
+        }
+
+        if (b == 0x1B) {
+            state = (state == SCAN_STRING) ? SCAN_STRING_ESC : SCAN_ESC;
+            continue;
+        } else if (b == 0x18 || b == 0x1A) {
+            // CAN and SUB cancel any sequence.
+            state = SCAN_GROUND;
+            continue;
+        }
+
+        switch (state) {
+            case SCAN_GROUND:
+                if ((b & 0xE0) == 0xC0) utf8_remaining = 1;
+                else if ((b & 0xF0) == 0xE0) utf8_remaining = 2;
+                else if ((b & 0xF8) == 0xF0) utf8_remaining = 3;
+                break;
+            case SCAN_ESC:
+                if (b == '[') state = SCAN_CSI;
+                else if (b == ']' || b == 'P' || b == '_' || b == '^' || b == 'X') state = SCAN_STRING;
+                else if (b >= 0x20 && b <= 0x2F) state = SCAN_ESC_INTERMEDIATE;
+                else if (b >= 0x30) state = SCAN_GROUND;
+                break;
+            case SCAN_ESC_INTERMEDIATE:
+                if (b >= 0x30 && b <= 0x7E) state = SCAN_GROUND;
+                break;
+            case SCAN_CSI:
+                if (b >= 0x40 && b <= 0x7E) state = SCAN_GROUND;
+                break;
+            case SCAN_STRING:
+                if (b == 0x07) state = SCAN_GROUND;
+                break;
+            case SCAN_STRING_ESC:
+                state = (b == '\\') ? SCAN_GROUND : SCAN_STRING;
+                break;
+        }
+    }
+    return state | (utf8_remaining << SCAN_UTF8_SHIFT);
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_scanOutput(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jobject buffer, jint offset1, jint length1, jint offset2, jint length2, jint state)
+{
+    unsigned char const* address = (unsigned char const*) (*env)->GetDirectBufferAddress(env, buffer);
+    if (address == NULL) return throw_runtime_exception(env, "Not a direct buffer");
+    int utf8_remaining = state >> SCAN_UTF8_SHIFT;
+    state = scan_bytes(address + offset1, (size_t) length1, state & ((1 << SCAN_UTF8_SHIFT) - 1), utf8_remaining);
+    if (length2 > 0) state = scan_bytes(address + offset2, (size_t) length2, state & ((1 << SCAN_UTF8_SHIFT) - 1), state >> SCAN_UTF8_SHIFT);
+    return state;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_epollCreate(JNIEnv* env, jclass TERMUX_UNUSED(clazz))
+{
+    int epoll_fd = epoll_create1(EPOLL_CLOEXEC);
+    if (epoll_fd < 0) return throw_runtime_exception(env, "epoll_create1() failed");
+    return epoll_fd;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_epollControl(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint epollFd, jint operation, jint fd, jint events)
+{
+    struct epoll_event event = { .events = (uint32_t) events, .data.fd = fd };
+    return (epoll_ctl(epollFd, operation, fd, &event) == 0) ? 0 : -errno;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_epollWait(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint epollFd, jintArray fdsAndEvents, jint timeoutMillis)
+{
+    struct epoll_event events[TERMUX_MAX_EPOLL_EVENTS];
+    int max_events = (*env)->GetArrayLength(env, fdsAndEvents) / 2;
+    if (max_events > TERMUX_MAX_EPOLL_EVENTS) max_events = TERMUX_MAX_EPOLL_EVENTS;
+    int count = epoll_wait(epollFd, events, max_events, timeoutMillis);
+    if (count < 0) return (errno == EINTR) ? 0 : -errno;
+
+    jint result[2 * TERMUX_MAX_EPOLL_EVENTS];
+    for (int i = 0; i < count; i++) {
+        result[2 * i] = events[i].data.fd;
+        result[2 * i + 1] = (jint) events[i].events;
+    }
+    (*env)->SetIntArrayRegion(env, fdsAndEvents, 0, 2 * count, result);
+    return count;
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_createEventFd(JNIEnv* env, jclass TERMUX_UNUSED(clazz))
+{
+    int fd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    if (fd < 0) return throw_runtime_exception(env, "eventfd() failed");
+    return fd;
+}
+
+JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_signalEventFd(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fd)
+{
+    uint64_t one = 1;
+    // Can only fail with EAGAIN if the counter would overflow, in which case it is signalled already.
+    ssize_t TERMUX_UNUSED(result) = write(fd, &one, sizeof(one));
+}
+
+JNIEXPORT void JNICALL Java_com_termux_terminal_JNI_clearEventFd(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fd)
+{
+    uint64_t value;
+    ssize_t TERMUX_UNUSED(result) = read(fd, &value, sizeof(value));
+}
+
+JNIEXPORT jint JNICALL Java_com_termux_terminal_JNI_pidfdOpen(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+{
+    long fd = syscall(__NR_pidfd_open, (pid_t) pid, 0);
+    return (fd < 0) ? -errno : (jint) fd;
+}
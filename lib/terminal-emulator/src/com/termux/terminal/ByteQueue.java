@@ -1,15 +1,35 @@
 package com.termux.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.nio.ByteBuffer;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p/>
+ * The buffer is a direct {@link ByteBuffer} so that a producer or consumer thread doing file descriptor I/O can use
+ * {@link #readFromFileDescriptor(int)} and {@link #writeToFileDescriptor(int)}, which let the kernel copy directly
+ * to or from the buffer with readv(2)/writev(2). Those system calls are done outside of the lock: only the space
+ * reserved for the calling side is accessed, and the head and size are committed under the lock afterwards.
+ */
 final class ByteQueue {
 
-    private final byte[] mBuffer;
+    /** Returned by {@link #readFromFileDescriptor(int)} if the queue is full. */
+    static final int QUEUE_FULL = Integer.MIN_VALUE;
+    /** Returned by {@link #readFromFileDescriptor(int)} and {@link #writeToFileDescriptor(int)} if the queue is closed. */
+    static final int QUEUE_CLOSED = Integer.MIN_VALUE + 1;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
     private int mHead;
     private int mStoredBytes;
     private boolean mOpen = true;
+    /** If {@link #readFromFileDescriptor} found the queue full since the last call to {@link #takeWriteStalled()}. */
+    private boolean mWriteStalled;
+    /** Where {@link #readFromFileDescriptor} last put data, only accessed by the producer thread. */
+    private int mLastReadOffset, mLastReadLength;
 
     public ByteQueue(int size) {
-        mBuffer = new byte[size];
+        mBuffer = ByteBuffer.allocateDirect(size);
+        mCapacity = size;
     }
 
     public synchronized void close() {
@@ -32,14 +52,15 @@ final class ByteQueue {
         if (!mOpen) return -1;
 
         int totalRead = 0;
-        int bufferLength = mBuffer.length;
+        int bufferLength = mCapacity;
         boolean wasFull = bufferLength == mStoredBytes;
         int length = buffer.length;
         int offset = 0;
         while (length > 0 && mStoredBytes > 0) {
             int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
             int bytesToCopy = Math.min(length, oneRun);
-            System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
+            mBuffer.position(mHead);
+            mBuffer.get(buffer, offset, bytesToCopy);
             mHead += bytesToCopy;
             if (mHead >= bufferLength) mHead = 0;
             mStoredBytes -= bytesToCopy;
@@ -57,52 +78,158 @@ final class ByteQueue {
      * Returns whether the output was totally written, false if it was closed before.
      */
     public boolean write(byte[] buffer, int offset, int lengthToWrite) {
+        while (lengthToWrite > 0) {
+            final int written = offer(buffer, offset, lengthToWrite);
+            if (written < 0) return false;
+            if (written == 0 && !awaitSpace()) return false;
+            offset += written;
+            lengthToWrite -= written;
+        }
+        return true;
+    }
+
+    /**
+     * Write as much of the specified portion of the provided buffer as there is room for in the queue, without waiting.
+     *
+     * @return the number of bytes written, 0 if the queue is full or -1 if it is closed.
+     */
+    public synchronized int offer(byte[] buffer, int offset, int lengthToWrite) {
         if (lengthToWrite + offset > buffer.length) {
             throw new IllegalArgumentException("length + offset > buffer.length");
         } else if (lengthToWrite <= 0) {
             throw new IllegalArgumentException("length <= 0");
         }
+        if (!mOpen) return -1;
 
-        final int bufferLength = mBuffer.length;
+        final int bufferLength = mCapacity;
+        final boolean wasEmpty = mStoredBytes == 0;
+        final int bytesToWrite = Math.min(lengthToWrite, bufferLength - mStoredBytes);
+        int bytesLeft = bytesToWrite;
+        while (bytesLeft > 0) {
+            int tail = mHead + mStoredBytes;
+            int oneRun;
+            if (tail >= bufferLength) {
+                // Buffer: [.............]
+                // ________________H_______T
+                // =>
+                // Buffer: [.............]
+                // ___________T____H
+                // onRun= _____----_
+                tail = tail - bufferLength;
+                oneRun = mHead - tail;
+            } else {
+                oneRun = bufferLength - tail;
+            }
+            int bytesToCopy = Math.min(oneRun, bytesLeft);
+            mBuffer.position(tail);
+            mBuffer.put(buffer, offset, bytesToCopy);
+            offset += bytesToCopy;
+            bytesLeft -= bytesToCopy;
+            mStoredBytes += bytesToCopy;
+        }
+        if (wasEmpty && bytesToWrite > 0) notify();
+        return bytesToWrite;
+    }
+
+    /**
+     * Wait until there is room in the queue, which the consumer has to be asked to make first if it only reads when
+     * told to. Returns false if the queue is closed before.
+     */
+    public synchronized boolean awaitSpace() {
+        while (mStoredBytes == mCapacity && mOpen) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+        return mOpen;
+    }
 
+    /**
+     * Read from a non-blocking file descriptor directly into the free space of the queue. May only be called from the
+     * producer thread.
+     *
+     * @return the number of bytes read, 0 on end of file, the negated errno value on failure, {@link #QUEUE_FULL} if
+     * there is no room in the queue or {@link #QUEUE_CLOSED} if the queue is closed.
+     */
+    int readFromFileDescriptor(int fd) {
+        final int tail, free;
         synchronized (this) {
-            while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
-                if (!mOpen) return false;
-                final boolean wasEmpty = mStoredBytes == 0;
-                int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-                lengthToWrite -= bytesToWriteBeforeWaiting;
-
-                while (bytesToWriteBeforeWaiting > 0) {
-                    int tail = mHead + mStoredBytes;
-                    int oneRun;
-                    if (tail >= bufferLength) {
-                        // Buffer: [.............]
-                        // ________________H_______T
-                        // =>
-                        // Buffer: [.............]
-                        // ___________T____H
-                        // onRun= _____----_
-                        tail = tail - bufferLength;
-                        oneRun = mHead - tail;
-                    } else {
-                        oneRun = bufferLength - tail;
-                    }
-                    int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-                    System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-                    offset += bytesToCopy;
-                    bytesToWriteBeforeWaiting -= bytesToCopy;
-                    mStoredBytes += bytesToCopy;
-                }
-                if (wasEmpty) notify();
+            if (!mOpen) return QUEUE_CLOSED;
+            free = mCapacity - mStoredBytes;
+            if (free == 0) {
+                mWriteStalled = true;
+                return QUEUE_FULL;
             }
+            tail = (mHead + mStoredBytes) % mCapacity;
         }
-        return true;
+
+        final int firstLength = Math.min(free, mCapacity - tail);
+        final int bytesRead = JNI.readv(fd, mBuffer, tail, firstLength, 0, free - firstLength);
+        if (bytesRead <= 0) return bytesRead;
+        mLastReadOffset = tail;
+        mLastReadLength = bytesRead;
+
+        synchronized (this) {
+            if (!mOpen) return QUEUE_CLOSED;
+            final boolean wasEmpty = mStoredBytes == 0;
+            mStoredBytes += bytesRead;
+            if (wasEmpty) notify();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Scan the data added by the last {@link #readFromFileDescriptor(int)} with {@link JNI#scanOutput}. May only be
+     * called from the producer thread, and the data is only read so the consumer may already be reading it.
+     */
+    int scanLastRead(int scanState) {
+        final int firstLength = Math.min(mLastReadLength, mCapacity - mLastReadOffset);
+        return JNI.scanOutput(mBuffer, mLastReadOffset, firstLength, 0, mLastReadLength - firstLength, scanState);
+    }
+
+    /** Returns whether the queue is full, in which case the producer cannot add anything more. */
+    synchronized boolean isFull() {
+        return mStoredBytes == mCapacity;
+    }
+
+    /**
+     * Write the contents of the queue directly to a non-blocking file descriptor. May only be called from the
+     * consumer thread.
+     *
+     * @return the number of bytes written, 0 if the queue is empty, the negated errno value on failure or
+     * {@link #QUEUE_CLOSED} if the queue is closed.
+     */
+    int writeToFileDescriptor(int fd) {
+        final int head, stored;
+        synchronized (this) {
+            if (!mOpen) return QUEUE_CLOSED;
+            if (mStoredBytes == 0) return 0;
+            head = mHead;
+            stored = mStoredBytes;
+        }
+
+        final int firstLength = Math.min(stored, mCapacity - head);
+        final int bytesWritten = JNI.writev(fd, mBuffer, head, firstLength, 0, stored - firstLength);
+        if (bytesWritten <= 0) return bytesWritten;
+
+        synchronized (this) {
+            final boolean wasFull = mStoredBytes == mCapacity;
+            mHead = (mHead + bytesWritten) % mCapacity;
+            mStoredBytes -= bytesWritten;
+            if (wasFull) notify();
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Returns whether {@link #readFromFileDescriptor(int)} has found the queue full since the last call to this
+     * method, in which case the producer should be told that there is now room in the queue.
+     */
+    public synchronized boolean takeWriteStalled() {
+        boolean stalled = mWriteStalled;
+        mWriteStalled = false;
+        return stalled;
     }
 }
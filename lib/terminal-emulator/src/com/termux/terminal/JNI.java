@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
+
 /**
  * Native methods for creating and managing pseudoterminal subprocesses. C code is in jni/termux.c.
  */
@@ -38,4 +40,78 @@ final class JNI {
     /** Close a file descriptor through the close(2) system call. */
     public static native void close(int fileDescriptor);
 
+    /** Event and operation constants of epoll(7), see sys/epoll.h. */
+    static final int EPOLLIN = 0x001;
+    static final int EPOLLOUT = 0x004;
+    static final int EPOLLERR = 0x008;
+    static final int EPOLLHUP = 0x010;
+    static final int EPOLL_CTL_ADD = 1;
+    static final int EPOLL_CTL_DEL = 2;
+    static final int EPOLL_CTL_MOD = 3;
+
+    /** Set the O_NONBLOCK flag on a file descriptor. */
+    public static native void setNonBlocking(int fd);
+
+    /**
+     * Read from a file descriptor into up to two regions of a direct buffer, see readv(2). The buffer position and limit
+     * are ignored.
+     *
+     * @return the number of bytes read, 0 on end of file or the negated errno value on failure.
+     */
+    public static native int readv(int fd, ByteBuffer buffer, int offset1, int length1, int offset2, int length2);
+
+    /**
+     * Write to a file descriptor from up to two regions of a direct buffer, see writev(2). The buffer position and limit
+     * are ignored.
+     *
+     * @return the number of bytes written or the negated errno value on failure.
+     */
+    public static native int writev(int fd, ByteBuffer buffer, int offset1, int length1, int offset2, int length2);
+
+    /**
+     * Scan up to two regions of a direct buffer of terminal output for escape sequences and UTF-8 sequences, without
+     * interpreting them, to find out if the output ends in the middle of such a sequence.
+     *
+     * @param state the state returned when scanning the preceding output, or {@link #SCAN_STATE_GROUND} initially.
+     * @return the state after the scanned output, which is {@link #SCAN_STATE_GROUND} if not in the middle of a sequence.
+     */
+    public static native int scanOutput(ByteBuffer buffer, int offset1, int length1, int offset2, int length2, int state);
+
+    /** The state of {@link #scanOutput} when not in the middle of an escape sequence or UTF-8 sequence. */
+    public static final int SCAN_STATE_GROUND = 0;
+
+    /** Create a close-on-exec epoll instance, see epoll_create1(2). */
+    public static native int epollCreate();
+
+    /**
+     * Add, modify or remove the epoll registration of a file descriptor, see epoll_ctl(2).
+     *
+     * @return 0 on success or the negated errno value on failure.
+     */
+    public static native int epollControl(int epollFd, int operation, int fd, int events);
+
+    /**
+     * Wait for events on an epoll instance, see epoll_wait(2).
+     *
+     * @param fdsAndEvents receives the file descriptor and the events of each ready file descriptor as pairs.
+     * @return the number of ready file descriptors (0 if interrupted or timed out) or the negated errno value on failure.
+     */
+    public static native int epollWait(int epollFd, int[] fdsAndEvents, int timeoutMillis);
+
+    /** Create a non-blocking close-on-exec eventfd(2), used to wake up a thread waiting in {@link #epollWait}. */
+    public static native int createEventFd();
+
+    /** Make an eventfd readable. */
+    public static native void signalEventFd(int fd);
+
+    /** Make an eventfd no longer readable. */
+    public static native void clearEventFd(int fd);
+
+    /**
+     * Obtain a file descriptor which becomes readable when the process exits, see pidfd_open(2).
+     *
+     * @return the file descriptor or the negated errno value on failure, such as -ENOSYS on kernels older than 5.3.
+     */
+    public static native int pidfdOpen(int processId);
+
 }
@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.util.Arrays;
+
 /**
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
  * history.
@@ -17,6 +19,13 @@ public final class TerminalBuffer {
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /**
+     * The number of times the screen has moved down in the circular buffer, so that external row r currently has the
+     * absolute row number mScreenMoves + r, which stays the same for a row while it scrolls into the transcript.
+     */
+    long mScreenMoves;
+    /** The number of rows allocated by this buffer, see {@link TerminalSessionStats}. */
+    long mRowsAllocated;
 
     /**
      * Create a transcript screen.
@@ -163,6 +172,7 @@ public final class TerminalBuffer {
                 }
             }
             mScreenFirstRow += shiftDownOfTopRow;
+            mScreenMoves += shiftDownOfTopRow;
             mScreenFirstRow = (mScreenFirstRow < 0) ? (mScreenFirstRow + mTotalRows) : (mScreenFirstRow % mTotalRows);
             mTotalRows = newTotalRows;
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
@@ -174,6 +184,7 @@ public final class TerminalBuffer {
             mLines = new TerminalRow[newTotalRows];
             for (int i = 0; i < newTotalRows; i++)
                 mLines[i] = new TerminalRow(newColumns, currentStyle);
+            mRowsAllocated += newTotalRows;
 
             final int oldActiveTranscriptRows = mActiveTranscriptRows;
             final int oldScreenFirstRow = mScreenFirstRow;
@@ -331,6 +342,7 @@ public final class TerminalBuffer {
 
         // Update the screen location in the ring buffer:
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScreenMoves++;
         // Note that the history has grown if not already full:
         if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
 
@@ -338,6 +350,7 @@ public final class TerminalBuffer {
         int blankRow = externalToInternalRow(bottomMargin - 1);
         if (mLines[blankRow] == null) {
             mLines[blankRow] = new TerminalRow(mColumns, style);
+            mRowsAllocated++;
         } else {
             mLines[blankRow].clear(style);
         }
@@ -382,8 +395,25 @@ public final class TerminalBuffer {
                 setChar(sx + x, sy + y, val, style);
     }
 
+    /**
+     * Replace the contents of this buffer with the given rows, of which the last {@link #mScreenRows} make up the screen
+     * and the ones before are put in the transcript as far as there is room.
+     */
+    void restoreRows(TerminalRow[] rows) {
+        final int transcriptRows = Math.min(rows.length - mScreenRows, mTotalRows - mScreenRows);
+        final int firstRow = rows.length - mScreenRows - transcriptRows;
+        Arrays.fill(mLines, null);
+        System.arraycopy(rows, firstRow, mLines, 0, transcriptRows + mScreenRows);
+        mScreenFirstRow = transcriptRows;
+        mActiveTranscriptRows = transcriptRows;
+    }
+
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        if (mLines[row] == null) {
+            mLines[row] = new TerminalRow(mColumns, 0);
+            mRowsAllocated++;
+        }
+        return mLines[row];
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
@@ -402,6 +432,7 @@ public final class TerminalBuffer {
                                  int bottom, int right) {
         for (int y = top; y < bottom; y++) {
             TerminalRow line = mLines[externalToInternalRow(y)];
+            line.mVersion++;
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
             int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
             for (int x = startOfLine; x < endOfLine; x++) {
@@ -139,7 +139,7 @@ public final class TerminalEmulator {
     public int mRows, mColumns;
 
     /** The normal screen buffer. Stores the characters that appear on the screen of the emulated terminal. */
-    private final TerminalBuffer mMainBuffer;
+    final TerminalBuffer mMainBuffer;
     /**
      * The alternate screen buffer, exactly as large as the display and contains no additional saved lines (so that when
      * the alternate screen buffer is active, you cannot scroll back to view saved lines).
@@ -221,6 +221,9 @@ public final class TerminalEmulator {
      */
     private int mScrollCounter = 0;
 
+    /** The number of code points processed, see {@link TerminalSessionStats}. */
+    long mCodePointsProcessed;
+
     private byte mUtf8ToFollow, mUtf8Index;
     private final byte[] mUtf8InputBuffer = new byte[4];
     private int mLastEmittedCodePoint = -1;
@@ -402,8 +405,21 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        int i = 0;
+        while (i < length) {
+            if (mEscapeState == ESC_NONE && mUtf8ToFollow == 0) {
+                // Most output is runs of printable ASCII between escape sequences, which need no decoding or dispatch:
+                final int runStart = i;
+                while (i < length && buffer[i] >= 32 && buffer[i] < 127)
+                    emitCodePoint(buffer[i++]);
+                if (i != runStart) {
+                    mContinueSequence = false;
+                    mCodePointsProcessed += i - runStart;
+                    continue;
+                }
+            }
+            processByte(buffer[i++]);
+        }
     }
 
     private void processByte(byte byteToProcess) {
@@ -472,6 +488,7 @@ public final class TerminalEmulator {
     }
 
     public void processCodePoint(int b) {
+        mCodePointsProcessed++;
         switch (b) {
             case 0: // Null character (NUL, ^@). Do nothing.
                 break;
@@ -2325,6 +2342,18 @@ public final class TerminalEmulator {
         return mTitle;
     }
 
+    /**
+     * Restore the cursor, display modes, title and colors saved in a snapshot, after the rows of the main buffer have
+     * been restored with {@link TerminalBuffer#restoreRows(TerminalRow[])}.
+     */
+    void restoreState(int cursorRow, int cursorCol, int cursorStyle, boolean reverseVideo, String title, int[] colors) {
+        setCursorRowCol(cursorRow, cursorCol);
+        mCursorStyle = cursorStyle;
+        setDecsetinternalBit(DECSET_BIT_REVERSE_VIDEO, reverseVideo);
+        mTitle = title;
+        System.arraycopy(colors, 0, mColors.mCurrentColors, 0, Math.min(colors.length, mColors.mCurrentColors.length));
+    }
+
     /** Change the terminal session's title. */
     private void setTitle(String newTitle) {
         String oldTitle = mTitle;
@@ -0,0 +1,329 @@
+package com.termux.terminal;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.OsConstants;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Performs the pseudo-terminal I/O of all {@link TerminalSession}s on a single thread using epoll(7), instead of
+ * using separate reader, writer and waiter threads for each session.
+ * <p/>
+ * For each session the master pty file descriptor is watched for output from the process, which is read directly into
+ * the {@link TerminalSession#mProcessToTerminalIOQueue}, and for room to write input directly from the
+ * {@link TerminalSession#mTerminalToProcessIOQueue} when needed. Reading pauses while the queue to the main thread
+ * is full, leaving further output in the kernel pty buffer. Process exit is detected through a pidfd where the
+ * kernel supports it, and otherwise by a thread per session waiting for the process.
+ * <p/>
+ * All session state is owned by the multiplexer thread. Other threads request changes with {@link #post(Runnable)}.
+ */
+final class TerminalIOMultiplexer implements Runnable {
+
+    /** The maximum number of reads from a single pty before handling other ready file descriptors. */
+    private static final int MAX_READS_PER_EVENT = 4;
+    private static final int MAX_EVENTS = 64;
+    /**
+     * How long to hold back telling the main thread about output which ends in the middle of an escape sequence or
+     * UTF-8 sequence, since the rest normally follows right away and processing it in the same message saves a wakeup
+     * of the main thread and the emulator from handling half a sequence.
+     */
+    private static final long PARTIAL_SEQUENCE_WAKEUP_DELAY_MILLIS = 2;
+
+    private static TerminalIOMultiplexer sInstance;
+
+    /** Get the multiplexer, starting its thread on first use. */
+    static synchronized TerminalIOMultiplexer getInstance() {
+        if (sInstance == null) {
+            sInstance = new TerminalIOMultiplexer();
+            new Thread(sInstance, "TermIOMultiplexer").start();
+        }
+        return sInstance;
+    }
+
+    /** The state of a registered session. */
+    private static final class Channel {
+        final TerminalSession mSession;
+        final int mPtyFd;
+        final int mPid;
+        /** A pidfd for the process, or -1 if not supported or the process has exited. */
+        int mPidFd = -1;
+        /** The epoll events that {@link #mPtyFd} is currently registered for, 0 if not registered. */
+        int mPtyEvents;
+        /** If the process has exited, after which no more output is read. */
+        boolean mExited;
+        /** If the pty has reached end of file, which happens when all processes have closed the slave side. */
+        boolean mPtyEndOfFile;
+        /** The state of {@link JNI#scanOutput} at the end of the output read so far. */
+        int mScanState = JNI.SCAN_STATE_GROUND;
+        /**
+         * The {@link SystemClock#uptimeMillis()} at which the main thread is told about output held back since it ended
+         * in the middle of a sequence, or 0 if none is held back.
+         */
+        long mWakeupDeadline;
+
+        Channel(TerminalSession session, int ptyFd, int pid) {
+            mSession = session;
+            mPtyFd = ptyFd;
+            mPid = pid;
+        }
+    }
+
+    private final int mEpollFd;
+    /** An eventfd signalled to wake up the multiplexer thread when there are {@link #mOperations} to perform. */
+    private final int mWakeupFd;
+    private final ConcurrentLinkedQueue<Runnable> mOperations = new ConcurrentLinkedQueue<>();
+
+    private final IdentityHashMap<TerminalSession, Channel> mChannels = new IdentityHashMap<>();
+    /** The channels keyed by both their pty and pidfd file descriptors. */
+    private final SparseArray<Channel> mChannelsByFd = new SparseArray<>();
+
+    /** The channels with output held back, see {@link Channel#mWakeupDeadline}. */
+    private final ArrayList<Channel> mDeferredWakeups = new ArrayList<>();
+
+    /** Used to discard input which can no longer be written to an exited process. */
+    private final byte[] mDiscardBuffer = new byte[4096];
+    private final int[] mEvents = new int[2 * MAX_EVENTS];
+
+    private TerminalIOMultiplexer() {
+        mEpollFd = JNI.epollCreate();
+        mWakeupFd = JNI.createEventFd();
+        JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_ADD, mWakeupFd, JNI.EPOLLIN);
+    }
+
+    /** Start performing I/O for a session whose process has just been started. */
+    void register(final TerminalSession session, final int ptyFd, final int pid) {
+        JNI.setNonBlocking(ptyFd);
+        // Seccomp filters of older Android versions kill the process on unknown system calls:
+        final int pidFd = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) ? JNI.pidfdOpen(pid) : -1;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Channel channel = new Channel(session, ptyFd, pid);
+                mChannels.put(session, channel);
+                mChannelsByFd.put(ptyFd, channel);
+                if (pidFd >= 0) {
+                    channel.mPidFd = pidFd;
+                    mChannelsByFd.put(pidFd, channel);
+                    JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_ADD, pidFd, JNI.EPOLLIN);
+                }
+                setPtyEvents(channel, JNI.EPOLLIN);
+            }
+        });
+
+        // Started after posting the above, which operations are performed in order of, so that the channel exists when
+        // the exit is reported even if the process exits right away:
+        if (pidFd < 0) {
+            new Thread("TermSessionWaiter[pid=" + pid + "]") {
+                @Override
+                public void run() {
+                    final int exitCode = JNI.waitFor(pid);
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Channel channel = mChannels.get(session);
+                            if (channel != null && !channel.mExited) onProcessExited(channel, exitCode);
+                        }
+                    });
+                }
+            }.start();
+        }
+    }
+
+    /** Write data which has been added to the {@link TerminalSession#mTerminalToProcessIOQueue} of a session. */
+    void requestWrite(final TerminalSession session) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Channel channel = mChannels.get(session);
+                if (channel != null) writeToProcess(channel);
+            }
+        });
+    }
+
+    /** Resume reading output after the main thread has made room in a full queue. */
+    void resumeReading(final TerminalSession session) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Channel channel = mChannels.get(session);
+                if (channel != null && !channel.mExited && !channel.mPtyEndOfFile)
+                    setPtyEvents(channel, channel.mPtyEvents | JNI.EPOLLIN);
+            }
+        });
+    }
+
+    /** Stop performing I/O for a session whose process has exited, and close its pty. */
+    void unregister(final TerminalSession session) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Channel channel = mChannels.remove(session);
+                if (channel == null) return;
+                if (channel.mWakeupDeadline != 0) {
+                    channel.mWakeupDeadline = 0;
+                    mDeferredWakeups.remove(channel);
+                }
+                setPtyEvents(channel, 0);
+                mChannelsByFd.remove(channel.mPtyFd);
+                closePidFd(channel);
+                JNI.close(channel.mPtyFd);
+            }
+        });
+    }
+
+    /** Run an operation on the multiplexer thread. */
+    private void post(Runnable operation) {
+        mOperations.add(operation);
+        JNI.signalEventFd(mWakeupFd);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final int count = JNI.epollWait(mEpollFd, mEvents, getWakeupTimeout());
+            if (count < 0) {
+                Log.e(EmulatorDebug.LOG_TAG, "epoll_wait() failed with errno " + (-count));
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                final int fd = mEvents[2 * i];
+                final int events = mEvents[2 * i + 1];
+                if (fd == mWakeupFd) {
+                    JNI.clearEventFd(mWakeupFd);
+                    continue;
+                }
+                final Channel channel = mChannelsByFd.get(fd);
+                if (channel == null) continue;
+                if (fd == channel.mPidFd) {
+                    onProcessExited(channel, JNI.waitFor(channel.mPid));
+                } else {
+                    if ((events & (JNI.EPOLLIN | JNI.EPOLLHUP | JNI.EPOLLERR)) != 0 && !channel.mExited) readFromProcess(channel);
+                    if ((events & JNI.EPOLLOUT) != 0) writeToProcess(channel);
+                }
+            }
+
+            Runnable operation;
+            while ((operation = mOperations.poll()) != null) operation.run();
+
+            if (!mDeferredWakeups.isEmpty()) {
+                final long now = SystemClock.uptimeMillis();
+                for (int i = mDeferredWakeups.size() - 1; i >= 0; i--) {
+                    Channel channel = mDeferredWakeups.get(i);
+                    if (channel.mWakeupDeadline <= now) wakeUpMainThread(channel);
+                }
+            }
+        }
+    }
+
+    /** The epoll timeout until the first held back output should be delivered, or -1 to wait indefinitely. */
+    private int getWakeupTimeout() {
+        if (mDeferredWakeups.isEmpty()) return -1;
+        long deadline = Long.MAX_VALUE;
+        for (Channel channel : mDeferredWakeups) deadline = Math.min(deadline, channel.mWakeupDeadline);
+        return (int) Math.max(0, deadline - SystemClock.uptimeMillis());
+    }
+
+    /** Tell the session about queued output, unless it ends in the middle of a sequence which should soon be complete. */
+    private void onOutputQueued(Channel channel, ByteQueue queue) {
+        channel.mScanState = queue.scanLastRead(channel.mScanState);
+        if (channel.mScanState != JNI.SCAN_STATE_GROUND && !queue.isFull()) {
+            if (channel.mWakeupDeadline == 0) {
+                channel.mWakeupDeadline = SystemClock.uptimeMillis() + PARTIAL_SEQUENCE_WAKEUP_DELAY_MILLIS;
+                mDeferredWakeups.add(channel);
+            }
+        } else {
+            wakeUpMainThread(channel);
+        }
+    }
+
+    private void wakeUpMainThread(Channel channel) {
+        if (channel.mWakeupDeadline != 0) {
+            channel.mWakeupDeadline = 0;
+            mDeferredWakeups.remove(channel);
+        }
+        channel.mSession.onProcessOutputQueued();
+    }
+
+    private void readFromProcess(Channel channel) {
+        final ByteQueue queue = channel.mSession.mProcessToTerminalIOQueue;
+        for (int reads = 0; reads < MAX_READS_PER_EVENT; reads++) {
+            final int bytesRead = queue.readFromFileDescriptor(channel.mPtyFd);
+            if (bytesRead > 0) {
+                onOutputQueued(channel, queue);
+            } else if (bytesRead == ByteQueue.QUEUE_FULL || bytesRead == ByteQueue.QUEUE_CLOSED) {
+                // Stop reading until the main thread has made room, see resumeReading(), or for good if closed:
+                setPtyEvents(channel, channel.mPtyEvents & ~JNI.EPOLLIN);
+                if (channel.mWakeupDeadline != 0) wakeUpMainThread(channel);
+                return;
+            } else if (bytesRead == -OsConstants.EAGAIN) {
+                return;
+            } else {
+                if (channel.mWakeupDeadline != 0) wakeUpMainThread(channel);
+                // End of file, or EIO when the slave side has been closed. The hang up would be reported by epoll for
+                // as long as the pty is registered, so stop watching it altogether and wait for the process exit.
+                channel.mPtyEndOfFile = true;
+                setPtyEvents(channel, 0);
+                return;
+            }
+        }
+    }
+
+    private void writeToProcess(Channel channel) {
+        final ByteQueue queue = channel.mSession.mTerminalToProcessIOQueue;
+        while (true) {
+            final int written = queue.writeToFileDescriptor(channel.mPtyFd);
+            if (written > 0) continue;
+            if (written == -OsConstants.EAGAIN) {
+                setPtyEvents(channel, channel.mPtyEvents | JNI.EPOLLOUT);
+                return;
+            }
+            if (written != 0 && written != ByteQueue.QUEUE_CLOSED) {
+                // The process is gone, drop what it will never read so that the main thread never blocks on a full queue.
+                while (queue.read(mDiscardBuffer, false) > 0) {
+                    // Discard.
+                }
+            }
+            setPtyEvents(channel, channel.mPtyEvents & ~JNI.EPOLLOUT);
+            return;
+        }
+    }
+
+    private void onProcessExited(Channel channel, int exitCode) {
+        // Forward what the process wrote just before exiting:
+        if (!channel.mPtyEndOfFile) readFromProcess(channel);
+        if (channel.mWakeupDeadline != 0) wakeUpMainThread(channel);
+        channel.mExited = true;
+        setPtyEvents(channel, 0);
+        closePidFd(channel);
+        // The pty is closed in unregister(), after the session has stopped using it.
+        channel.mSession.onProcessExited(exitCode);
+    }
+
+    private void closePidFd(Channel channel) {
+        if (channel.mPidFd < 0) return;
+        JNI.epollControl(mEpollFd, JNI.EPOLL_CTL_DEL, channel.mPidFd, 0);
+        mChannelsByFd.remove(channel.mPidFd);
+        JNI.close(channel.mPidFd);
+        channel.mPidFd = -1;
+    }
+
+    /** Change the epoll registration of the pty of a channel, removing it altogether if not waiting for any events. */
+    private void setPtyEvents(Channel channel, int events) {
+        if (events == channel.mPtyEvents) return;
+        final int operation;
+        if (events == 0) {
+            operation = JNI.EPOLL_CTL_DEL;
+        } else {
+            operation = (channel.mPtyEvents == 0) ? JNI.EPOLL_CTL_ADD : JNI.EPOLL_CTL_MOD;
+        }
+        final int result = JNI.epollControl(mEpollFd, operation, channel.mPtyFd, events);
+        if (result != 0) Log.w(EmulatorDebug.LOG_TAG, "epoll_ctl() failed with errno " + (-result));
+        channel.mPtyEvents = events;
+    }
+
+}
@@ -16,13 +16,15 @@ public final class TerminalRow {
     /** The text filling this terminal row. */
     public char[] mText;
     /** The number of java char:s used in {@link #mText}. */
-    private short mSpaceUsed;
+    short mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
     /** The style bits of each cell in the row. See {@link TextStyle}. */
     final long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
+    /** Incremented on every change to the text or style of this row. See {@link #getVersion()}. */
+    int mVersion;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
@@ -58,6 +60,17 @@ public final class TerminalRow {
         }
     }
 
+    /** Make this row an exact copy of another row with the same number of columns. */
+    void copyFrom(TerminalRow other) {
+        if (mText.length < other.mText.length) mText = new char[other.mText.length];
+        System.arraycopy(other.mText, 0, mText, 0, other.mSpaceUsed);
+        System.arraycopy(other.mStyle, 0, mStyle, 0, mColumns);
+        mSpaceUsed = other.mSpaceUsed;
+        mLineWrap = other.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = other.mHasNonOneWidthOrSurrogateChars;
+        mVersion = other.mVersion;
+    }
+
     public int getSpaceUsed() {
         return mSpaceUsed;
     }
@@ -116,6 +129,7 @@ public final class TerminalRow {
     }
 
     public void clear(long style) {
+        mVersion++;
         Arrays.fill(mText, ' ');
         Arrays.fill(mStyle, style);
         mSpaceUsed = (short) mColumns;
@@ -124,6 +138,7 @@ public final class TerminalRow {
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
     public void setChar(int columnToSet, int codePoint, long style) {
+        mVersion++;
         mStyle[columnToSet] = style;
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
@@ -244,4 +259,12 @@ public final class TerminalRow {
         return mStyle[column];
     }
 
+    /**
+     * A counter which changes each time the text or style of this row is modified, allowing renderers to keep a cached
+     * drawing of the row for as long as the version stays the same.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
 }
@@ -0,0 +1,75 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the visible part of a {@link TerminalEmulator}, which can be rendered on another thread while the emulator
+ * keeps processing input on the main thread.
+ * <p/>
+ * A snapshot is meant to be reused: {@link #copyFrom} only copies the rows that have changed since the snapshot was
+ * last taken.
+ */
+public final class TerminalScreenSnapshot {
+
+    public int mColumns, mRows;
+    /** Copies of the visible rows, of which the first {@link #mRows} are valid. */
+    public TerminalRow[] mLines = new TerminalRow[0];
+    /** The first and last selected columns of each visible row, or -1 if nothing on the row is selected. */
+    public int[] mSelX1 = new int[0], mSelX2 = new int[0];
+    public final int[] mColors = new int[TextStyle.NUM_INDEXED_COLORS];
+    public int mCursorRow, mCursorCol, mCursorStyle;
+    /** If the cursor is shown - that is, enabled by the emulator and not in the off phase of a blink. */
+    public boolean mCursorVisible;
+    public boolean mReverseVideo;
+
+    /** The rows that {@link #mLines} were copied from, to avoid copying rows again when unchanged. */
+    private TerminalRow[] mSourceLines = new TerminalRow[0];
+
+    /**
+     * Copy the state of the emulator with the top row displayed at topRow, which needs to be done on the thread
+     * that the emulator is used on.
+     */
+    public void copyFrom(TerminalEmulator emulator, int topRow, int selectionY1, int selectionY2, int selectionX1,
+                         int selectionX2, boolean cursorBlinkOn) {
+        final int rows = emulator.mRows;
+        final int columns = emulator.mColumns;
+        if (columns != mColumns || mLines.length < rows) {
+            mLines = new TerminalRow[rows];
+            mSourceLines = new TerminalRow[rows];
+            mSelX1 = new int[rows];
+            mSelX2 = new int[rows];
+        }
+        mColumns = columns;
+        mRows = rows;
+
+        final TerminalBuffer screen = emulator.getScreen();
+        for (int i = 0; i < rows; i++) {
+            final int row = topRow + i;
+            TerminalRow source = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+            TerminalRow copy = mLines[i];
+            if (copy == null) copy = mLines[i] = new TerminalRow(columns, TextStyle.NORMAL);
+            if (source != mSourceLines[i] || source.mVersion != copy.mVersion) {
+                copy.copyFrom(source);
+                mSourceLines[i] = source;
+            }
+
+            int selx1 = -1, selx2 = -1;
+            if (row >= selectionY1 && row <= selectionY2) {
+                if (row == selectionY1) selx1 = selectionX1;
+                selx2 = (row == selectionY2) ? selectionX2 : columns;
+            }
+            mSelX1[i] = selx1;
+            mSelX2[i] = selx2;
+        }
+        // Do not keep references to rows no longer displayed:
+        Arrays.fill(mSourceLines, rows, mSourceLines.length, null);
+
+        System.arraycopy(emulator.mColors.mCurrentColors, 0, mColors, 0, mColors.length);
+        mCursorRow = emulator.getCursorRow() - topRow;
+        mCursorCol = emulator.getCursorCol();
+        mCursorStyle = emulator.getCursorStyle();
+        mCursorVisible = cursorBlinkOn && emulator.isShowingCursor();
+        mReverseVideo = emulator.isReverseVideo();
+    }
+
+}
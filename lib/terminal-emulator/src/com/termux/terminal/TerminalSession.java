@@ -3,26 +3,22 @@ package com.termux.terminal;
 import android.annotation.SuppressLint;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
- * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * {@link #updateSize(int, int)} terminal emulation will begin and the subprocess I/O will be handled by the shared
+ * {@link TerminalIOMultiplexer} thread. All terminal emulation and callback methods will be performed on the main thread.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -46,40 +42,42 @@ public final class TerminalSession extends TerminalOutput {
 
     }
 
-    private static FileDescriptor wrapFileDescriptor(int fileDescriptor) {
-        FileDescriptor result = new FileDescriptor();
-        try {
-            Field descriptorField;
-            try {
-                descriptorField = FileDescriptor.class.getDeclaredField("descriptor");
-            } catch (NoSuchFieldException e) {
-                // For desktop java:
-                descriptorField = FileDescriptor.class.getDeclaredField("fd");
-            }
-            descriptorField.setAccessible(true);
-            descriptorField.set(result, fileDescriptor);
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException e) {
-            Log.wtf(EmulatorDebug.LOG_TAG, "Error accessing FileDescriptor#descriptor private field", e);
-            System.exit(1);
-        }
-        return result;
-    }
-
     private static final int MSG_NEW_INPUT = 1;
+    private static final int MSG_SCREEN_UPDATE = 2;
     private static final int MSG_PROCESS_EXITED = 4;
 
+    /**
+     * Log the time taken to start the process of each session in the app. The start latency itself is measured by the
+     * benchmark in jni/subprocess_benchmark.c.
+     */
+    private static final boolean LOG_SUBPROCESS_LATENCY = false;
+
+    /** The time without user input after which a visible session is considered idle. */
+    private static final long IDLE_THRESHOLD_MILLIS = 5000;
+    /** The minimum time between screen updates caused by process output while idle. */
+    private static final long IDLE_SCREEN_UPDATE_INTERVAL_MILLIS = 50;
+    /** The length of the time windows that {@link #setAppendTimeLimit(long)} applies to, one frame at 60 fps. */
+    private static final long APPEND_TIME_WINDOW_MILLIS = 16;
+    /**
+     * The time that the main thread may spend processing output before yielding to input events and drawing, after
+     * which processing continues in a new {@link #MSG_NEW_INPUT} posted at the end of the message queue.
+     */
+    private static final long APPEND_SLICE_NANOS = 4 * 1000000L;
+    /** The minimum time between screen updates while output is arriving faster than it can be processed. */
+    private static final long FLOOD_SCREEN_UPDATE_INTERVAL_MILLIS = 100;
+
     public final String mHandle = UUID.randomUUID().toString();
 
     TerminalEmulator mEmulator;
 
     /**
-     * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-     * terminal emulator.
+     * A queue written to from the {@link TerminalIOMultiplexer} thread when the process outputs, and read by main thread
+     * to process by terminal emulator.
      */
     final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
     /**
-     * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
-     * writing to the {@link #mTerminalFileDescriptor}.
+     * A queue written to from the main thread due to user interaction, and read by the {@link TerminalIOMultiplexer}
+     * thread which forwards by writing to the {@link #mTerminalFileDescriptor}.
      */
     final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
@@ -103,20 +101,49 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** If this session is displayed, see {@link #setVisible(boolean)}. */
+    private boolean mVisible;
+    /** If the screen has changed without the {@link #mChangeCallback} having been notified yet. */
+    private boolean mScreenUpdatePending;
+    /** The {@link SystemClock#uptimeMillis()} of the last write to the process, used to detect idle sessions. */
+    private long mLastInputTime;
+    /** The {@link SystemClock#uptimeMillis()} of the last screen update notification. */
+    private long mLastScreenUpdateTime;
+
+    /** Contents to show when the emulator is created, see {@link #restoreSnapshot(TerminalSnapshot.Contents)}. */
+    private TerminalSnapshot.Contents mSnapshotToRestore;
+
+    private final TerminalSessionStats mStats = new TerminalSessionStats();
+    /** The maximum time in nanoseconds to spend processing output per time window, or 0 for no limit. */
+    private long mAppendTimeLimitNanos;
+    /** The time window that {@link #mAppendNanosInWindow} has been spent in. */
+    private long mAppendWindow;
+    private long mAppendNanosInWindow;
+    /**
+     * Set while a {@link #MSG_NEW_INPUT} is queued, so that the {@link TerminalIOMultiplexer} thread does not queue one
+     * for every read while the main thread is behind.
+     */
+    private final AtomicBoolean mNewInputQueued = new AtomicBoolean();
+
+    private final byte[] mReceiveBuffer = new byte[4 * 1024];
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
 
         @Override
         public void handleMessage(Message msg) {
             if (msg.what == MSG_NEW_INPUT && isRunning()) {
-                int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-                if (bytesRead > 0) {
-                    mEmulator.append(mReceiveBuffer, bytesRead);
-                    notifyScreenUpdate();
-                }
+                processOutput();
+            } else if (msg.what == MSG_SCREEN_UPDATE) {
+                if (mScreenUpdatePending) notifyScreenUpdate();
             } else if (msg.what == MSG_PROCESS_EXITED) {
                 int exitCode = (Integer) msg.obj;
+                // Process the output left by the process at once, since it may be more than a time slice allows:
+                int bytesRead;
+                while (mEmulator != null && (bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false)) > 0) {
+                    mEmulator.append(mReceiveBuffer, bytesRead);
+                    mStats.mBytesRead += bytesRead;
+                }
                 cleanupResources(exitCode);
                 mChangeCallback.onSessionFinished(TerminalSession.this);
 
@@ -156,7 +183,8 @@ public final class TerminalSession extends TerminalOutput {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
+            // The pty is closed once the process has exited and cleanupResources() has been called.
+            if (isRunning()) JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
             mEmulator.resize(columns, rows);
         }
     }
@@ -166,6 +194,14 @@ public final class TerminalSession extends TerminalOutput {
         return (mEmulator == null) ? null : mEmulator.getTitle();
     }
 
+    /**
+     * Show the contents of an earlier session, read with {@link TerminalSnapshot#read(java.io.File)}, above the output of
+     * the process. Needs to be called before the emulator is created by the first {@link #updateSize(int, int)}.
+     */
+    public void restoreSnapshot(TerminalSnapshot.Contents snapshot) {
+        mSnapshotToRestore = snapshot;
+    }
+
     /**
      * Set the terminal emulator's window size and start terminal emulation.
      *
@@ -173,61 +209,138 @@ public final class TerminalSession extends TerminalOutput {
      * @param rows    The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */2000);
+        final TerminalSnapshot.Contents snapshot = mSnapshotToRestore;
+        mSnapshotToRestore = null;
+        if (snapshot == null) {
+            mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */2000);
+        } else {
+            // Restore at the size of the snapshot and let resizing reflow the text to the current size:
+            mEmulator = new TerminalEmulator(this, snapshot.mColumns, snapshot.mRows, /* transcript= */2000);
+            snapshot.restoreInto(mEmulator);
+            mEmulator.resize(columns, rows);
+            // Start the new process on a line of its own below the restored text:
+            byte[] newLine = {'\r', '\n'};
+            mEmulator.append(newLine, newLine.length);
+        }
 
         int[] processId = new int[1];
+        final long startTime = LOG_SUBPROCESS_LATENCY ? System.nanoTime() : 0;
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns);
         mShellPid = processId[0];
+        if (LOG_SUBPROCESS_LATENCY)
+            Log.i(EmulatorDebug.LOG_TAG, "Started process " + mShellPid + " in " + (System.nanoTime() - startTime) / 1000 + " us");
 
-        final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor);
-
-        new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
-                    while (true) {
-                        int read = termIn.read(buffer);
-                        if (read == -1) return;
-                        if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
-                    }
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
+        TerminalIOMultiplexer.getInstance().register(this, mTerminalFileDescriptor, mShellPid);
+    }
+
+    /** Called on the {@link TerminalIOMultiplexer} thread when output has been added to the process queue. */
+    void onProcessOutputQueued() {
+        if (mNewInputQueued.compareAndSet(false, true)) mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+    }
+
+    /**
+     * Process output from the process queue in a time slice of at most {@link #APPEND_SLICE_NANOS}, and within the
+     * limit set by {@link #setAppendTimeLimit(long)}, continuing in a later message if there is more.
+     */
+    private void processOutput() {
+        // Output queued from now on needs another message, unless this one gets to it:
+        mNewInputQueued.set(false);
+
+        final long sliceStartTime = System.nanoTime();
+        boolean appended = false;
+        boolean backlog = false;
+        while (true) {
+            if (mAppendTimeLimitNanos > 0) {
+                final long now = SystemClock.uptimeMillis();
+                final long window = now / APPEND_TIME_WINDOW_MILLIS;
+                if (window != mAppendWindow) {
+                    mAppendWindow = window;
+                    mAppendNanosInWindow = 0;
+                } else if (mAppendNanosInWindow >= mAppendTimeLimitNanos) {
+                    // Leave the rest of this frame to other sessions and to drawing:
+                    mStats.mThrottledFrames++;
+                    mNewInputQueued.set(true);
+                    mMainThreadHandler.sendEmptyMessageDelayed(MSG_NEW_INPUT, (window + 1) * APPEND_TIME_WINDOW_MILLIS - now);
+                    backlog = true;
+                    break;
                 }
             }
-        }.start();
-
-        new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                final byte[] buffer = new byte[4096];
-                try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-                    while (true) {
-                        int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-                        if (bytesToWrite == -1) return;
-                        termOut.write(buffer, 0, bytesToWrite);
-                    }
-                } catch (IOException e) {
-                    // Ignore.
-                }
+            if (appended && System.nanoTime() - sliceStartTime >= APPEND_SLICE_NANOS) {
+                // Let pending input events and frames be handled before continuing:
+                if (mNewInputQueued.compareAndSet(false, true)) mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+                backlog = true;
+                break;
             }
-        }.start();
 
-        new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                int processExitCode = JNI.waitFor(mShellPid);
-                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
+            if (mProcessToTerminalIOQueue.takeWriteStalled()) {
+                mStats.mQueueStalls++;
+                TerminalIOMultiplexer.getInstance().resumeReading(this);
             }
-        }.start();
+            if (bytesRead <= 0) break;
+
+            final long startTime = System.nanoTime();
+            mEmulator.append(mReceiveBuffer, bytesRead);
+            final long appendNanos = System.nanoTime() - startTime;
+            mStats.mBytesRead += bytesRead;
+            mStats.mAppendNanos += appendNanos;
+            mAppendNanosInWindow += appendNanos;
+            appended = true;
+        }
+        if (appended) onProcessOutput(backlog);
+    }
 
+    /** Called on the {@link TerminalIOMultiplexer} thread when the process has exited. */
+    void onProcessExited(int exitCode) {
+        mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, exitCode));
     }
 
-    /** Write data to the shell process. */
+    /**
+     * Write data to the shell process. Blocks while the process does not keep up, such as when pasting more than fits
+     * in the {@link #mTerminalToProcessIOQueue}.
+     */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        mLastInputTime = SystemClock.uptimeMillis();
+        if (mShellPid <= 0) return;
+        final TerminalIOMultiplexer multiplexer = TerminalIOMultiplexer.getInstance();
+        while (count > 0) {
+            final int written = mTerminalToProcessIOQueue.offer(data, offset, count);
+            if (written < 0) return;
+            if (written == 0) {
+                // The multiplexer only drains the queue when asked to, so ask before waiting for room:
+                multiplexer.requestWrite(this);
+                if (!mTerminalToProcessIOQueue.awaitSpace()) return;
+                continue;
+            }
+            mStats.mBytesWritten += written;
+            offset += written;
+            count -= written;
+        }
+        multiplexer.requestWrite(this);
+    }
+
+    /**
+     * Limit the time that the main thread spends processing output of this session to the given number of milliseconds
+     * per frame, postponing the rest to the next frame so that a session flooding output cannot starve the rest of
+     * the user interface. A limit of 0 disables limiting, which is the default.
+     */
+    public void setAppendTimeLimit(long millisPerFrame) {
+        mAppendTimeLimitNanos = Math.max(0, millisPerFrame) * 1000000L;
+    }
+
+    /** Fill in the resource usage of this session so far. Needs to be called on the main thread. */
+    public void getStats(TerminalSessionStats stats) {
+        stats.copyFrom(mStats);
+        if (mEmulator != null) {
+            stats.mCodePointsProcessed = mEmulator.mCodePointsProcessed;
+            stats.mRowsAllocated = mEmulator.mMainBuffer.mRowsAllocated + mEmulator.mAltBuffer.mRowsAllocated;
+        }
+    }
+
+    /** Called by the view each time the screen of this session has been drawn, see {@link TerminalSessionStats}. */
+    public void onScreenDrawn() {
+        mStats.mRedraws++;
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -271,18 +384,71 @@ public final class TerminalSession extends TerminalOutput {
         return mEmulator;
     }
 
-    /** Notify the {@link #mChangeCallback} that the screen has changed. */
+    /**
+     * Set whether this session is currently displayed. Screen updates of sessions not displayed are not sent to the
+     * {@link #mChangeCallback}, which instead gets a single notification when the session becomes visible again.
+     */
+    public void setVisible(boolean visible) {
+        if (visible == mVisible) return;
+        mVisible = visible;
+        if (visible && mScreenUpdatePending) notifyScreenUpdate();
+    }
+
+    public boolean isVisible() {
+        return mVisible;
+    }
+
+    /** Notify the {@link #mChangeCallback} that the screen has changed, unless this session is not visible. */
     protected void notifyScreenUpdate() {
+        if (!mVisible) {
+            mScreenUpdatePending = true;
+            return;
+        }
+        mScreenUpdatePending = false;
+        mLastScreenUpdateTime = SystemClock.uptimeMillis();
         mChangeCallback.onTextChanged(this);
     }
 
+    /**
+     * Notify about a screen change due to output from the process. The notifications are coalesced to at most one per
+     * {@link #FLOOD_SCREEN_UPDATE_INTERVAL_MILLIS} while there is a backlog of output, since drawing frames which are
+     * immediately outdated only takes time from processing the output. If there has been no user input for a while
+     * they are coalesced to at most one per {@link #IDLE_SCREEN_UPDATE_INTERVAL_MILLIS}, since there is little need to
+     * display e.g. the progress of a long running build at full frame rate.
+     *
+     * @param backlog if there is more output left to process.
+     */
+    private void onProcessOutput(boolean backlog) {
+        if (mVisible) {
+            final long now = SystemClock.uptimeMillis();
+            long interval = 0;
+            if (backlog) {
+                interval = FLOOD_SCREEN_UPDATE_INTERVAL_MILLIS;
+            } else if (now - mLastInputTime > IDLE_THRESHOLD_MILLIS) {
+                interval = IDLE_SCREEN_UPDATE_INTERVAL_MILLIS;
+            }
+            long delay = mLastScreenUpdateTime + interval - now;
+            if (interval > 0 && delay > 0) {
+                if (!mScreenUpdatePending) {
+                    mScreenUpdatePending = true;
+                    mMainThreadHandler.sendEmptyMessageDelayed(MSG_SCREEN_UPDATE, delay);
+                }
+                return;
+            }
+        }
+        notifyScreenUpdate();
+    }
+
     /** Reset state for terminal emulator state. */
     public void reset() {
         mEmulator.reset();
         notifyScreenUpdate();
     }
 
-    /** Finish this terminal session by sending SIGKILL to the shell. */
+    /**
+     * Finish this terminal session by sending SIGKILL to the shell. Does nothing if the shell has not been started yet,
+     * as for a restored session which has not been displayed.
+     */
     public void finishIfRunning() {
         if (isRunning()) {
             try {
@@ -300,10 +466,10 @@ public final class TerminalSession extends TerminalOutput {
             mShellExitStatus = exitStatus;
         }
 
-        // Stop the reader and writer threads, and close the I/O streams
+        // Stop the I/O, after which the multiplexer closes the pty:
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
-        JNI.close(mTerminalFileDescriptor);
+        TerminalIOMultiplexer.getInstance().unregister(this);
     }
 
     @Override
@@ -311,11 +477,18 @@ public final class TerminalSession extends TerminalOutput {
         mChangeCallback.onTitleChanged(this);
     }
 
+    /** If the shell has been started and not yet exited. */
     public synchronized boolean isRunning() {
-        return mShellPid != -1;
+        // A pid of 0 means not started, and must never be killed since that would kill the whole process group:
+        return mShellPid > 0;
+    }
+
+    /** If the shell has been started and has exited, as opposed to not having been started yet. */
+    public synchronized boolean isFinished() {
+        return mShellPid == -1;
     }
 
-    /** Only valid if not {@link #isRunning()}. */
+    /** Only valid if {@link #isFinished()}. */
     public synchronized int getExitStatus() {
         return mShellExitStatus;
     }
@@ -0,0 +1,69 @@
+package com.termux.terminal;
+
+/**
+ * Counters of the resources used by a {@link TerminalSession} since it was started, to find out which session is
+ * keeping the device busy. Obtained with {@link TerminalSession#getStats(TerminalSessionStats)} on the main thread.
+ */
+public final class TerminalSessionStats {
+
+    long mBytesRead;
+    long mBytesWritten;
+    long mCodePointsProcessed;
+    long mAppendNanos;
+    long mRowsAllocated;
+    long mQueueStalls;
+    long mRedraws;
+    long mThrottledFrames;
+
+    /** The number of bytes of output read from the process. */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** The number of bytes of input written to the process. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** The number of code points decoded from the process output and processed by the emulator. */
+    public long getCodePointsProcessed() {
+        return mCodePointsProcessed;
+    }
+
+    /** The time in nanoseconds spent by the main thread processing output in {@link TerminalEmulator#append}. */
+    public long getAppendNanos() {
+        return mAppendNanos;
+    }
+
+    /** The number of terminal rows allocated, which grows with scrolling output and resizing. */
+    public long getRowsAllocated() {
+        return mRowsAllocated;
+    }
+
+    /** The number of times the process output queue has been full, so that reading from the process had to pause. */
+    public long getQueueStalls() {
+        return mQueueStalls;
+    }
+
+    /** The number of times the screen of the session has been drawn. */
+    public long getRedraws() {
+        return mRedraws;
+    }
+
+    /** The number of frames in which processing of output was postponed due to the append time limit. */
+    public long getThrottledFrames() {
+        return mThrottledFrames;
+    }
+
+    void copyFrom(TerminalSessionStats other) {
+        mBytesRead = other.mBytesRead;
+        mBytesWritten = other.mBytesWritten;
+        mCodePointsProcessed = other.mCodePointsProcessed;
+        mAppendNanos = other.mAppendNanos;
+        mRowsAllocated = other.mRowsAllocated;
+        mQueueStalls = other.mQueueStalls;
+        mRedraws = other.mRedraws;
+        mThrottledFrames = other.mThrottledFrames;
+    }
+
+}
@@ -0,0 +1,403 @@
+package com.termux.terminal;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persists the main screen buffer of a {@link TerminalEmulator} - rows with their styles together with the cursor,
+ * display modes, title and colors - to a file, so that the contents of a session can be restored with
+ * {@link #read(File)} after the process has been killed.
+ * <p/>
+ * The file is append-only: each {@link #capture(TerminalEmulator)} appends a batch with the terminal state and the
+ * rows which have changed since the last capture, keyed by their absolute row number (see
+ * {@link TerminalBuffer#mScreenMoves}) so that rows scrolling into the transcript are not written again. Once the
+ * appended batches have made the file large enough it is compacted into a single batch. All file I/O happens on a
+ * background thread shared by all sessions, and a capture is skipped while the previous one is still being written,
+ * so that heavy output never piles up work.
+ * <p/>
+ * File format, with all values big endian as written by {@link DataOutputStream}:
+ *
+ * <pre>
+ * file   = MAGIC VERSION batch*
+ * batch  = RECORD_STATE state (RECORD_ROW row)* RECORD_END
+ * state  = columns rows screenMoves(long) transcriptRows cursorRow cursorCol cursorStyle reverseVideo(bool)
+ *          hasTitle(bool) [title(utf)] colorCount color*
+ * row    = absoluteRow(long) flags(byte) charCount(short) char* styleRunCount(short) (runLength(short) style(long))*
+ * </pre>
+ *
+ * A batch is only applied when read up to its {@link #RECORD_END}, so that a batch cut short by the process being
+ * killed is ignored.
+ */
+public final class TerminalSnapshot {
+
+    private static final int MAGIC = 0x544d5853; // "TMXS".
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_STATE = 1;
+    private static final byte RECORD_ROW = 2;
+    private static final byte RECORD_END = 3;
+
+    private static final int ROW_FLAG_LINE_WRAP = 1;
+    private static final int ROW_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS = 2;
+
+    /** Compact the file when appended batches have made it this many times larger than after the last compaction. */
+    private static final int COMPACTION_GROWTH_FACTOR = 2;
+    /** Do not bother compacting files smaller than this. */
+    private static final long COMPACTION_MIN_BYTES = 256 * 1024;
+
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TermSnapshotWriter");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /** The restorable contents of a snapshot file. */
+    public static final class Contents {
+        int mColumns, mRows;
+        long mScreenMoves;
+        int mTranscriptRows;
+        int mCursorRow, mCursorCol, mCursorStyle;
+        boolean mReverseVideo;
+        String mTitle;
+        int[] mColors = new int[0];
+        /** The rows keyed by their absolute row number. */
+        final HashMap<Long, TerminalRow> mLines = new HashMap<>();
+
+        /** Restore these contents into a newly created emulator, which needs to be of the same size. */
+        void restoreInto(TerminalEmulator emulator) {
+            final TerminalRow[] rows = new TerminalRow[mTranscriptRows + mRows];
+            final long firstRow = mScreenMoves - mTranscriptRows;
+            for (int i = 0; i < rows.length; i++) {
+                TerminalRow row = mLines.get(firstRow + i);
+                rows[i] = (row == null) ? new TerminalRow(mColumns, TextStyle.NORMAL) : row;
+            }
+            emulator.mMainBuffer.restoreRows(rows);
+            emulator.restoreState(mCursorRow, mCursorCol, mCursorStyle, mReverseVideo, mTitle, mColors);
+        }
+    }
+
+    /** The rows and state of a capture, to be written on the background thread. */
+    private static final class Batch {
+        final Contents mState = new Contents();
+        final List<Long> mRowNumbers = new ArrayList<>();
+        final List<TerminalRow> mRows = new ArrayList<>();
+        /** If the file should be rewritten from scratch instead of appended to. */
+        boolean mReset;
+    }
+
+    private final File mFile;
+    /** Set while a batch is queued or being written, during which further captures are skipped. */
+    private final AtomicBoolean mWriteInProgress = new AtomicBoolean();
+    /** Set when writing has failed, so that the next capture writes the file from scratch. */
+    private volatile boolean mRewriteNeeded;
+
+    /**
+     * The rows as last written, indexed by their absolute row number modulo the number of rows in the buffer. Only
+     * accessed on the thread that the emulator is used on.
+     */
+    private TerminalRow[] mWrittenRows;
+    private int[] mWrittenVersions;
+    private long[] mWrittenRowNumbers;
+    private int mWrittenColumns = -1;
+    /** The state as last written, to skip capturing when nothing has changed. */
+    private Contents mWrittenState;
+
+    /** The size of the file, and its size after the last compaction. Only accessed on the background thread. */
+    private long mFileLength, mCompactedFileLength;
+
+    public TerminalSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Capture the changes of the main screen buffer since the last capture and append them to the file in the
+     * background. Needs to be called on the thread that the emulator is used on.
+     */
+    public void capture(TerminalEmulator emulator) {
+        if (!mWriteInProgress.compareAndSet(false, true)) return;
+
+        final TerminalBuffer buffer = emulator.mMainBuffer;
+        final int totalRows = buffer.mTotalRows;
+        final Batch batch = new Batch();
+        batch.mReset = mRewriteNeeded || mWrittenRows == null || mWrittenRows.length != totalRows || mWrittenColumns != buffer.mColumns;
+        if (batch.mReset) {
+            mRewriteNeeded = false;
+            mWrittenRows = new TerminalRow[totalRows];
+            mWrittenVersions = new int[totalRows];
+            mWrittenRowNumbers = new long[totalRows];
+            mWrittenColumns = buffer.mColumns;
+        }
+
+        final Contents state = batch.mState;
+        state.mColumns = buffer.mColumns;
+        state.mRows = buffer.mScreenRows;
+        state.mScreenMoves = buffer.mScreenMoves;
+        state.mTranscriptRows = buffer.getActiveTranscriptRows();
+        if (emulator.isAlternateBufferActive()) {
+            // The cursor belongs to the alternate buffer, so place it below what is on the main one:
+            state.mCursorRow = buffer.mScreenRows - 1;
+            state.mCursorCol = 0;
+        } else {
+            state.mCursorRow = emulator.getCursorRow();
+            state.mCursorCol = emulator.getCursorCol();
+        }
+        state.mCursorStyle = emulator.getCursorStyle();
+        state.mReverseVideo = emulator.isReverseVideo();
+        state.mTitle = emulator.getTitle();
+        state.mColors = emulator.mColors.mCurrentColors.clone();
+
+        for (int externalRow = -state.mTranscriptRows; externalRow < state.mRows; externalRow++) {
+            final TerminalRow row = buffer.allocateFullLineIfNecessary(buffer.externalToInternalRow(externalRow));
+            final long rowNumber = state.mScreenMoves + externalRow;
+            final int slot = (int) (((rowNumber % totalRows) + totalRows) % totalRows);
+            if (batch.mReset || mWrittenRows[slot] != row || mWrittenVersions[slot] != row.mVersion || mWrittenRowNumbers[slot] != rowNumber) {
+                TerminalRow copy = new TerminalRow(state.mColumns, TextStyle.NORMAL);
+                copy.copyFrom(row);
+                batch.mRowNumbers.add(rowNumber);
+                batch.mRows.add(copy);
+                mWrittenRows[slot] = row;
+                mWrittenVersions[slot] = row.mVersion;
+                mWrittenRowNumbers[slot] = rowNumber;
+            }
+        }
+
+        if (!batch.mReset && batch.mRows.isEmpty() && sameState(state, mWrittenState)) {
+            mWriteInProgress.set(false);
+            return;
+        }
+        mWrittenState = state;
+
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "Error writing terminal snapshot " + mFile, e);
+                    // Start over with a complete batch on the next capture:
+                    mRewriteNeeded = true;
+                } finally {
+                    mWriteInProgress.set(false);
+                }
+            }
+        });
+    }
+
+    /** Delete the snapshot file, after any batches being written. */
+    public void delete() {
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFile.exists() && !mFile.delete())
+                    Log.w(EmulatorDebug.LOG_TAG, "Could not delete terminal snapshot " + mFile);
+            }
+        });
+    }
+
+    /** Read a snapshot file, ignoring a last batch which was not completely written. */
+    public static Contents read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a terminal snapshot: " + file);
+
+            final Contents contents = new Contents();
+            final Contents batchState = new Contents();
+            boolean hasState = false;
+            try {
+                while (true) {
+                    if (in.readByte() != RECORD_STATE) throw new IOException("Corrupt terminal snapshot: " + file);
+                    readState(in, batchState);
+                    byte record;
+                    while ((record = in.readByte()) == RECORD_ROW) {
+                        final long rowNumber = in.readLong();
+                        batchState.mLines.put(rowNumber, readRow(in, batchState.mColumns));
+                    }
+                    if (record != RECORD_END) throw new IOException("Corrupt terminal snapshot: " + file);
+
+                    // The batch is complete, so apply it:
+                    if (batchState.mColumns != contents.mColumns) contents.mLines.clear();
+                    copyState(batchState, contents);
+                    contents.mLines.putAll(batchState.mLines);
+                    batchState.mLines.clear();
+                    hasState = true;
+                }
+            } catch (EOFException e) {
+                // End of the last complete batch.
+            }
+            if (!hasState) throw new IOException("Empty terminal snapshot: " + file);
+
+            // Drop rows which have scrolled out of the transcript:
+            final long firstRow = contents.mScreenMoves - contents.mTranscriptRows;
+            final long endRow = contents.mScreenMoves + contents.mRows;
+            for (Long rowNumber : new ArrayList<>(contents.mLines.keySet()))
+                if (rowNumber < firstRow || rowNumber >= endRow) contents.mLines.remove(rowNumber);
+            return contents;
+        }
+    }
+
+    private void writeBatch(Batch batch) throws IOException {
+        if (batch.mReset) {
+            final File tmpFile = new File(mFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeBatch(out, batch.mState, batch.mRowNumbers, batch.mRows);
+                mFileLength = out.size();
+            }
+            if (!tmpFile.renameTo(mFile)) throw new IOException("Cannot rename " + tmpFile + " to " + mFile);
+            mCompactedFileLength = mFileLength;
+            return;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)))) {
+            writeBatch(out, batch.mState, batch.mRowNumbers, batch.mRows);
+            mFileLength += out.size();
+        }
+        if (mFileLength > COMPACTION_MIN_BYTES && mFileLength > COMPACTION_GROWTH_FACTOR * mCompactedFileLength)
+            compact();
+    }
+
+    /** Rewrite the file as a single batch with only the rows still in the buffer. */
+    private void compact() throws IOException {
+        final Contents contents = read(mFile);
+        final Batch batch = new Batch();
+        copyState(contents, batch.mState);
+        final long firstRow = contents.mScreenMoves - contents.mTranscriptRows;
+        for (long rowNumber = firstRow; rowNumber < contents.mScreenMoves + contents.mRows; rowNumber++) {
+            TerminalRow row = contents.mLines.get(rowNumber);
+            if (row == null) continue;
+            batch.mRowNumbers.add(rowNumber);
+            batch.mRows.add(row);
+        }
+        batch.mReset = true;
+        writeBatch(batch);
+    }
+
+    private static void writeBatch(DataOutputStream out, Contents state, List<Long> rowNumbers, List<TerminalRow> rows) throws IOException {
+        out.writeByte(RECORD_STATE);
+        out.writeInt(state.mColumns);
+        out.writeInt(state.mRows);
+        out.writeLong(state.mScreenMoves);
+        out.writeInt(state.mTranscriptRows);
+        out.writeInt(state.mCursorRow);
+        out.writeInt(state.mCursorCol);
+        out.writeInt(state.mCursorStyle);
+        out.writeBoolean(state.mReverseVideo);
+        out.writeBoolean(state.mTitle != null);
+        if (state.mTitle != null) out.writeUTF(state.mTitle);
+        out.writeInt(state.mColors.length);
+        for (int color : state.mColors) out.writeInt(color);
+
+        for (int i = 0; i < rows.size(); i++) {
+            out.writeByte(RECORD_ROW);
+            out.writeLong(rowNumbers.get(i));
+            writeRow(out, rows.get(i), state.mColumns);
+        }
+        out.writeByte(RECORD_END);
+    }
+
+    private static void writeRow(DataOutputStream out, TerminalRow row, int columns) throws IOException {
+        int flags = 0;
+        if (row.mLineWrap) flags |= ROW_FLAG_LINE_WRAP;
+        if (row.mHasNonOneWidthOrSurrogateChars) flags |= ROW_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS;
+        out.writeByte(flags);
+        out.writeShort(row.mSpaceUsed);
+        for (int i = 0; i < row.mSpaceUsed; i++) out.writeChar(row.mText[i]);
+
+        // Styles are mostly the same over long runs of cells, so are run length encoded:
+        int runs = 1;
+        for (int column = 1; column < columns; column++)
+            if (row.mStyle[column] != row.mStyle[column - 1]) runs++;
+        out.writeShort(runs);
+        int runStart = 0;
+        for (int column = 1; column <= columns; column++) {
+            if (column == columns || row.mStyle[column] != row.mStyle[runStart]) {
+                out.writeShort(column - runStart);
+                out.writeLong(row.mStyle[runStart]);
+                runStart = column;
+            }
+        }
+    }
+
+    private static void readState(DataInputStream in, Contents state) throws IOException {
+        state.mColumns = in.readInt();
+        state.mRows = in.readInt();
+        if (state.mColumns < 2 || state.mRows < 2 || state.mColumns > Short.MAX_VALUE || state.mRows > Short.MAX_VALUE)
+            throw new IOException("Invalid terminal snapshot size: " + state.mColumns + "x" + state.mRows);
+        state.mScreenMoves = in.readLong();
+        state.mTranscriptRows = Math.max(0, in.readInt());
+        state.mCursorRow = in.readInt();
+        state.mCursorCol = in.readInt();
+        state.mCursorStyle = in.readInt();
+        state.mReverseVideo = in.readBoolean();
+        state.mTitle = in.readBoolean() ? in.readUTF() : null;
+        final int colorCount = in.readInt();
+        if (colorCount < 0 || colorCount > TextStyle.NUM_INDEXED_COLORS) throw new IOException("Invalid color count: " + colorCount);
+        state.mColors = new int[colorCount];
+        for (int i = 0; i < colorCount; i++) state.mColors[i] = in.readInt();
+    }
+
+    private static TerminalRow readRow(DataInputStream in, int columns) throws IOException {
+        final TerminalRow row = new TerminalRow(columns, TextStyle.NORMAL);
+        final int flags = in.readByte();
+        row.mLineWrap = (flags & ROW_FLAG_LINE_WRAP) != 0;
+        row.mHasNonOneWidthOrSurrogateChars = (flags & ROW_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS) != 0;
+
+        final int spaceUsed = in.readShort();
+        if (spaceUsed < 0) throw new IOException("Invalid row length: " + spaceUsed);
+        if (row.mText.length < spaceUsed) row.mText = new char[spaceUsed];
+        for (int i = 0; i < spaceUsed; i++) row.mText[i] = in.readChar();
+        row.mSpaceUsed = (short) spaceUsed;
+
+        final int runs = in.readShort();
+        int column = 0;
+        for (int i = 0; i < runs; i++) {
+            final int runLength = in.readShort();
+            final long style = in.readLong();
+            if (runLength < 0 || column + runLength > columns) throw new IOException("Invalid style run length: " + runLength);
+            Arrays.fill(row.mStyle, column, column + runLength, style);
+            column += runLength;
+        }
+        return row;
+    }
+
+    private static void copyState(Contents from, Contents to) {
+        to.mColumns = from.mColumns;
+        to.mRows = from.mRows;
+        to.mScreenMoves = from.mScreenMoves;
+        to.mTranscriptRows = from.mTranscriptRows;
+        to.mCursorRow = from.mCursorRow;
+        to.mCursorCol = from.mCursorCol;
+        to.mCursorStyle = from.mCursorStyle;
+        to.mReverseVideo = from.mReverseVideo;
+        to.mTitle = from.mTitle;
+        to.mColors = from.mColors;
+    }
+
+    private static boolean sameState(Contents a, Contents b) {
+        return b != null && a.mColumns == b.mColumns && a.mRows == b.mRows && a.mScreenMoves == b.mScreenMoves
+            && a.mTranscriptRows == b.mTranscriptRows && a.mCursorRow == b.mCursorRow && a.mCursorCol == b.mCursorCol
+            && a.mCursorStyle == b.mCursorStyle && a.mReverseVideo == b.mReverseVideo
+            && (a.mTitle == null ? b.mTitle == null : a.mTitle.equals(b.mTitle)) && Arrays.equals(a.mColors, b.mColors);
+    }
+
+}
@@ -4,23 +4,44 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Typeface;
+import android.util.LruCache;
 
 import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalRow;
+import com.termux.terminal.TerminalScreenSnapshot;
 import com.termux.terminal.TextStyle;
 import com.termux.terminal.WcWidth;
 
 /**
  * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
  * <p/>
- * Saves font metrics, so needs to be recreated each time the typeface or font size changes.
+ * Saves font metrics, so needs to be recreated each time the typeface or font size changes. The metrics are measured
+ * once per typeface and size in the process, and views on the main thread share renderers through {@link #obtain}, so
+ * that zooming back and forth or opening another view does not measure all characters again.
  */
 public final class TerminalRenderer {
 
     final int mTextSize;
     final Typeface mTypeface;
+    /** Used for measuring, and for drawing text without any of the effects in {@link #mEffectPaints}. */
     private final Paint mTextPaint = new Paint();
+    /** Used for drawing backgrounds and the cursor. */
+    private final Paint mRectPaint = new Paint();
+    /** The color last set on {@link #mRectPaint}, to avoid setting it again when unchanged. */
+    private int mRectPaintColor;
+
+    private static final int EFFECT_PAINT_BOLD = 1;
+    private static final int EFFECT_PAINT_UNDERLINE = 2;
+    private static final int EFFECT_PAINT_ITALIC = 4;
+    private static final int EFFECT_PAINT_STRIKETHROUGH = 8;
+    /**
+     * One paint per combination of the EFFECT_PAINT_* bits, lazily created with the effects already applied so that
+     * text runs only need to change the color, which is avoided as well if unchanged - see {@link #mEffectPaintColors}.
+     */
+    private final Paint[] mEffectPaints = new Paint[16];
+    /** The color last set on each paint in {@link #mEffectPaints}. */
+    private final int[] mEffectPaintColors = new int[16];
 
     /** The width of a single mono spaced character obtained by {@link Paint#measureText(String)} on a single 'X'. */
     final float mFontWidth;
@@ -31,7 +52,73 @@ public final class TerminalRenderer {
     /** The {@link #mFontLineSpacing} + {@link #mFontAscent}. */
     final int mFontLineSpacingAndAscent;
 
-    private final float[] asciiMeasures = new float[127];
+    /** The measured widths of the ASCII characters, shared with all renderers of the same typeface and size. */
+    private final float[] asciiMeasures;
+
+    /** The number of typeface and size combinations to keep metrics for, enough for the steps of a pinch zoom. */
+    private static final int MAX_CACHED_METRICS = 32;
+    /** The number of renderers to keep for {@link #obtain}. */
+    private static final int MAX_CACHED_RENDERERS = 4;
+
+    /** What is measured for a typeface and size, which does not change and so can be shared between threads. */
+    private static final class Metrics {
+        final float mFontWidth;
+        final int mFontLineSpacing;
+        final int mFontAscent;
+        final float[] mAsciiMeasures = new float[127];
+
+        Metrics(Paint paint) {
+            mFontLineSpacing = (int) Math.ceil(paint.getFontSpacing());
+            mFontAscent = (int) Math.ceil(paint.ascent());
+            mFontWidth = paint.measureText("X");
+
+            StringBuilder sb = new StringBuilder(" ");
+            for (int i = 0; i < mAsciiMeasures.length; i++) {
+                sb.setCharAt(0, (char) i);
+                mAsciiMeasures[i] = paint.measureText(sb, 0, 1);
+            }
+        }
+    }
+
+    /** A typeface and size. Typefaces are compared by instance, as one created from a font file equals no other. */
+    private static final class CacheKey {
+        final int mTextSize;
+        final Typeface mTypeface;
+
+        CacheKey(int textSize, Typeface typeface) {
+            mTextSize = textSize;
+            mTypeface = typeface;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CacheKey && ((CacheKey) other).mTextSize == mTextSize && ((CacheKey) other).mTypeface == mTypeface;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mTextSize + System.identityHashCode(mTypeface);
+        }
+    }
+
+    /** Used from any thread, which {@link LruCache} is safe for. */
+    private static final LruCache<CacheKey, Metrics> sMetricsCache = new LruCache<>(MAX_CACHED_METRICS);
+    /** Only used from the main thread, see {@link #obtain}. */
+    private static final LruCache<CacheKey, TerminalRenderer> sRendererCache = new LruCache<>(MAX_CACHED_RENDERERS);
+
+    /**
+     * Get a renderer for the typeface and size, reusing one recently used for the same. A renderer keeps the state of
+     * its paints while drawing, so the renderers obtained here must only be used on the main thread.
+     */
+    public static TerminalRenderer obtain(int textSize, Typeface typeface) {
+        final CacheKey key = new CacheKey(textSize, typeface);
+        TerminalRenderer renderer = sRendererCache.get(key);
+        if (renderer == null) {
+            renderer = new TerminalRenderer(textSize, typeface);
+            sRendererCache.put(key, renderer);
+        }
+        return renderer;
+    }
 
     public TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
@@ -40,31 +127,41 @@ public final class TerminalRenderer {
         mTextPaint.setTypeface(typeface);
         mTextPaint.setAntiAlias(true);
         mTextPaint.setTextSize(textSize);
+        mEffectPaints[0] = mTextPaint;
+        mEffectPaintColors[0] = mTextPaint.getColor();
 
-        mFontLineSpacing = (int) Math.ceil(mTextPaint.getFontSpacing());
-        mFontAscent = (int) Math.ceil(mTextPaint.ascent());
-        mFontLineSpacingAndAscent = mFontLineSpacing + mFontAscent;
-        mFontWidth = mTextPaint.measureText("X");
+        mRectPaint.setAntiAlias(true);
+        mRectPaintColor = mRectPaint.getColor();
 
-        StringBuilder sb = new StringBuilder(" ");
-        for (int i = 0; i < asciiMeasures.length; i++) {
-            sb.setCharAt(0, (char) i);
-            asciiMeasures[i] = mTextPaint.measureText(sb, 0, 1);
+        final CacheKey key = new CacheKey(textSize, typeface);
+        Metrics metrics = sMetricsCache.get(key);
+        if (metrics == null) {
+            metrics = new Metrics(mTextPaint);
+            sMetricsCache.put(key, metrics);
         }
+        mFontLineSpacing = metrics.mFontLineSpacing;
+        mFontAscent = metrics.mFontAscent;
+        mFontLineSpacingAndAscent = mFontLineSpacing + mFontAscent;
+        mFontWidth = metrics.mFontWidth;
+        asciiMeasures = metrics.mAsciiMeasures;
     }
 
-    /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
+    /**
+     * Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection.
+     *
+     * @param cursorBlinkOn if the cursor, when shown by the emulator, is in the visible phase of blinking.
+     */
     public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
-                             int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2, boolean cursorBlinkOn) {
         final boolean reverseVideo = mEmulator.isReverseVideo();
         final int endRow = topRow + mEmulator.mRows;
-        final int columns = mEmulator.mColumns;
         final int cursorCol = mEmulator.getCursorCol();
         final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.isShowingCursor();
+        final boolean cursorVisible = cursorBlinkOn && mEmulator.isShowingCursor();
         final TerminalBuffer screen = mEmulator.getScreen();
         final int[] palette = mEmulator.mColors.mCurrentColors;
         final int cursorShape = mEmulator.getCursorStyle();
+        final float right = mEmulator.mColumns * mFontWidth;
 
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
@@ -73,7 +170,10 @@ public final class TerminalRenderer {
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
 
-            final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
+            // Skip rows outside of the clip, such as when only the cursor cell has been invalidated:
+            if (canvas.quickReject(0, heightOffset - mFontLineSpacing, right, heightOffset + mFontLineSpacing, Canvas.EdgeType.BW))
+                continue;
+
             int selx1 = -1, selx2 = -1;
             if (row >= selectionY1 && row <= selectionY2) {
                 if (row == selectionY1) selx1 = selectionX1;
@@ -81,68 +181,130 @@ public final class TerminalRenderer {
             }
 
             TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
-            final char[] line = lineObject.mText;
-            final int charsUsedInLine = lineObject.getSpaceUsed();
-
-            long lastRunStyle = 0;
-            boolean lastRunInsideCursor = false;
-            int lastRunStartColumn = -1;
-            int lastRunStartIndex = 0;
-            boolean lastRunFontWidthMismatch = false;
-            int currentCharIndex = 0;
-            float measuredWidthForRun = 0.f;
-
-            for (int column = 0; column < columns; ) {
-                final char charAtIndex = line[currentCharIndex];
-                final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
-                final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
-                final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (column >= selx1 && column <= selx2) || (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
-                final long style = lineObject.getStyle(column);
-
-                // Check if the measured text width for this code point is not the same as that expected by wcwidth().
-                // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
-                // smileys which android font renders as wide.
-                // If this is detected, we draw this code point scaled to match what wcwidth() expects.
-                final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
-                    currentCharIndex, charsForCodePoint);
-                final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
-
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column == 0) {
-                        // Skip first column as there is nothing to draw, just record the current style.
-                    } else {
-                        final int columnWidthSinceLastRun = column - lastRunStartColumn;
-                        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
-                            lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo);
-                    }
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = style;
-                    lastRunInsideCursor = insideCursor;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = fontWidthMismatch;
-                }
-                measuredWidthForRun += measuredCodePointWidth;
-                column += codePointWcWidth;
-                currentCharIndex += charsForCodePoint;
-                while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
-                    // Eat combining chars so that they are treated as part of the last non-combining code point,
-                    // instead of e.g. being considered inside the cursor in the next run.
-                    currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+            drawRow(canvas, lineObject, heightOffset, selx1, selx2, mEmulator.mColumns, palette, cursorShape, reverseVideo);
+            if (row == cursorRow && cursorVisible)
+                drawCursor(canvas, lineObject, heightOffset, cursorCol, palette, cursorShape, reverseVideo);
+        }
+    }
+
+    /** Render a snapshot of the terminal, as taken by {@link TerminalScreenSnapshot#copyFrom}, to a canvas. */
+    public final void render(TerminalScreenSnapshot snapshot, Canvas canvas) {
+        final int[] palette = snapshot.mColors;
+        canvas.drawColor(palette[snapshot.mReverseVideo ? TextStyle.COLOR_INDEX_FOREGROUND : TextStyle.COLOR_INDEX_BACKGROUND],
+            PorterDuff.Mode.SRC);
+
+        float heightOffset = mFontLineSpacingAndAscent;
+        for (int row = 0; row < snapshot.mRows; row++) {
+            heightOffset += mFontLineSpacing;
+            drawRow(canvas, snapshot.mLines[row], heightOffset, snapshot.mSelX1[row], snapshot.mSelX2[row], snapshot.mColumns,
+                palette, snapshot.mCursorStyle, snapshot.mReverseVideo);
+            if (row == snapshot.mCursorRow && snapshot.mCursorVisible)
+                drawCursor(canvas, snapshot.mLines[row], heightOffset, snapshot.mCursorCol, palette, snapshot.mCursorStyle,
+                    snapshot.mReverseVideo);
+        }
+    }
+
+    /**
+     * Draw a single row with its text baseline positioned according to heightOffset, which for the first row on
+     * screen is {@link #mFontLineSpacingAndAscent} + {@link #mFontLineSpacing}. The cursor is not drawn, see
+     * {@link #drawCursor}.
+     *
+     * @param selx1   the first selected column, or -1 if nothing on this row is selected.
+     * @param selx2   the last selected column, or -1 if nothing on this row is selected.
+     */
+    void drawRow(Canvas canvas, TerminalRow lineObject, float heightOffset, int selx1, int selx2, int columns, int[] palette,
+                 int cursorShape, boolean reverseVideo) {
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+
+        long lastRunStyle = 0;
+        boolean lastRunInsideCursor = false;
+        int lastRunStartColumn = -1;
+        int lastRunStartIndex = 0;
+        boolean lastRunFontWidthMismatch = false;
+        int currentCharIndex = 0;
+        float measuredWidthForRun = 0.f;
+
+        for (int column = 0; column < columns; ) {
+            final char charAtIndex = line[currentCharIndex];
+            final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
+            final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
+            final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
+            final int codePointWcWidth = WcWidth.width(codePoint);
+            final boolean insideCursor = (column >= selx1 && column <= selx2);
+            final long style = lineObject.getStyle(column);
+
+            // Check if the measured text width for this code point is not the same as that expected by wcwidth().
+            // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
+            // smileys which android font renders as wide.
+            // If this is detected, we draw this code point scaled to match what wcwidth() expects.
+            final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
+                currentCharIndex, charsForCodePoint);
+            final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
+
+            if (style != lastRunStyle || insideCursor != lastRunInsideCursor || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (column == 0) {
+                    // Skip first column as there is nothing to draw, just record the current style.
+                } else {
+                    final int columnWidthSinceLastRun = column - lastRunStartColumn;
+                    final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+                    int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                    drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
+                        lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
+                        cursorColor, cursorShape, lastRunStyle, reverseVideo);
                 }
+                measuredWidthForRun = 0.f;
+                lastRunStyle = style;
+                lastRunInsideCursor = insideCursor;
+                lastRunStartColumn = column;
+                lastRunStartIndex = currentCharIndex;
+                lastRunFontWidthMismatch = fontWidthMismatch;
+            }
+            measuredWidthForRun += measuredCodePointWidth;
+            column += codePointWcWidth;
+            currentCharIndex += charsForCodePoint;
+            while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+                // Eat combining chars so that they are treated as part of the last non-combining code point,
+                // instead of e.g. being considered inside the cursor in the next run.
+                currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
             }
+        }
 
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo);
+        final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+            measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo);
+    }
+
+    /**
+     * Draw the cursor at the specified column on top of an already drawn row, by drawing the cell under the cursor
+     * again with the cursor as background. Kept apart from {@link #drawRow} so that the cursor moving or blinking does
+     * not require the rows themselves to be drawn again.
+     */
+    void drawCursor(Canvas canvas, TerminalRow lineObject, float heightOffset, int cursorX, int[] palette, int cursorShape,
+                    boolean reverseVideo) {
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+
+        final int startIndex = lineObject.findStartOfColumn(cursorX);
+        int startColumn = cursorX;
+        // The cursor may be at the second half of a wide character, in which case the whole character is drawn:
+        if (cursorX > 0 && lineObject.findStartOfColumn(cursorX - 1) == startIndex) startColumn--;
+
+        final char charAtIndex = line[startIndex];
+        final int codePoint = Character.isHighSurrogate(charAtIndex) ? Character.toCodePoint(charAtIndex, line[startIndex + 1]) : charAtIndex;
+        final int charsForCodePoint = Character.charCount(codePoint);
+        final int columnWidth = Math.max(1, WcWidth.width(codePoint));
+        int endIndex = startIndex + charsForCodePoint;
+        while (endIndex < charsUsedInLine && WcWidth.width(line, endIndex) <= 0) {
+            endIndex += Character.isHighSurrogate(line[endIndex]) ? 2 : 1;
         }
+        final float measuredWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
+            startIndex, charsForCodePoint);
+
+        drawTextRun(canvas, line, palette, heightOffset, startColumn, columnWidth, startIndex, endIndex - startIndex,
+            measuredWidth, palette[TextStyle.COLOR_INDEX_CURSOR], cursorShape, lineObject.getStyle(startColumn), reverseVideo);
     }
 
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
@@ -188,18 +350,18 @@ public final class TerminalRenderer {
             savedMatrix = true;
         }
 
-        if (backColor != palette[TextStyle.COLOR_INDEX_BACKGROUND]) {
-            // Only draw non-default background.
-            mTextPaint.setColor(backColor);
-            canvas.drawRect(left, y - mFontLineSpacingAndAscent + mFontAscent, right, y, mTextPaint);
+        if (cursor != 0 || backColor != palette[TextStyle.COLOR_INDEX_BACKGROUND]) {
+            // Only draw non-default background, unless drawing over an already drawn cell.
+            setRectPaintColor(backColor);
+            canvas.drawRect(left, y - mFontLineSpacingAndAscent + mFontAscent, right, y, mRectPaint);
         }
 
         if (cursor != 0) {
-            mTextPaint.setColor(cursor);
+            setRectPaintColor(cursor);
             float cursorHeight = mFontLineSpacingAndAscent - mFontAscent;
             if (cursorStyle == TerminalEmulator.CURSOR_STYLE_UNDERLINE) cursorHeight /= 4.;
             else if (cursorStyle == TerminalEmulator.CURSOR_STYLE_BAR) right -= ((right - left) * 3) / 4.;
-            canvas.drawRect(left, y - cursorHeight, right, y, mTextPaint);
+            canvas.drawRect(left, y - cursorHeight, right, y, mRectPaint);
         }
 
         if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) == 0) {
@@ -215,16 +377,39 @@ public final class TerminalRenderer {
                 foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
             }
 
-            mTextPaint.setFakeBoldText(bold);
-            mTextPaint.setUnderlineText(underline);
-            mTextPaint.setTextSkewX(italic ? -0.35f : 0.f);
-            mTextPaint.setStrikeThruText(strikeThrough);
-            mTextPaint.setColor(foreColor);
+            final int effectIndex = (bold ? EFFECT_PAINT_BOLD : 0) | (underline ? EFFECT_PAINT_UNDERLINE : 0)
+                | (italic ? EFFECT_PAINT_ITALIC : 0) | (strikeThrough ? EFFECT_PAINT_STRIKETHROUGH : 0);
+            final Paint textPaint = getEffectPaint(effectIndex);
+            if (mEffectPaintColors[effectIndex] != foreColor) {
+                textPaint.setColor(foreColor);
+                mEffectPaintColors[effectIndex] = foreColor;
+            }
 
             // The text alignment is the default Paint.Align.LEFT.
-            canvas.drawText(text, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, mTextPaint);
+            canvas.drawText(text, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, textPaint);
         }
 
         if (savedMatrix) canvas.restore();
     }
+
+    private void setRectPaintColor(int color) {
+        if (color != mRectPaintColor) {
+            mRectPaint.setColor(color);
+            mRectPaintColor = color;
+        }
+    }
+
+    private Paint getEffectPaint(int effectIndex) {
+        Paint paint = mEffectPaints[effectIndex];
+        if (paint == null) {
+            paint = new Paint(mTextPaint);
+            paint.setFakeBoldText((effectIndex & EFFECT_PAINT_BOLD) != 0);
+            paint.setUnderlineText((effectIndex & EFFECT_PAINT_UNDERLINE) != 0);
+            paint.setTextSkewX((effectIndex & EFFECT_PAINT_ITALIC) != 0 ? -0.35f : 0.f);
+            paint.setStrikeThruText((effectIndex & EFFECT_PAINT_STRIKETHROUGH) != 0);
+            mEffectPaints[effectIndex] = paint;
+            mEffectPaintColors[effectIndex] = paint.getColor();
+        }
+        return paint;
+    }
 }
@@ -0,0 +1,158 @@
+package com.termux.view;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+import com.termux.terminal.TerminalBuffer;
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalRow;
+import com.termux.terminal.TextStyle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps one {@link RenderNode} per displayed row of a {@link TerminalView}, so that a frame only needs to record the
+ * rows which have changed since the last frame while the unchanged rows are replayed by the hardware renderer.
+ * <p/>
+ * Recorded rows are keyed by their {@link TerminalRow} object and {@link TerminalRow#getVersion()}, so rows which
+ * only move on screen (due to output scrolling the terminal or the user scrolling the transcript) are not recorded
+ * again but just positioned at their new place.
+ * <p/>
+ * Only used on hardware accelerated canvases on Android 10 and later, where {@link RenderNode} is public API.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+final class TerminalRowDisplayLists {
+
+    /** A recorded row together with the state that it was recorded with. */
+    private static final class RowDisplayList {
+        final RenderNode mNode = new RenderNode("TerminalRow");
+        int mVersion;
+        int mSelX1;
+        int mSelX2;
+    }
+
+    /** The rows recorded for the last frame, keyed by the row object that they were recorded from. */
+    private IdentityHashMap<TerminalRow, RowDisplayList> mRows = new IdentityHashMap<>();
+    /** The rows used for the frame being drawn, swapped with {@link #mRows} after each frame. */
+    private IdentityHashMap<TerminalRow, RowDisplayList> mNextRows = new IdentityHashMap<>();
+    /** Display lists for rows which are no longer displayed, kept around for reuse. */
+    private final ArrayList<RowDisplayList> mFreeRows = new ArrayList<>();
+
+    /** The state which affects all rows, which if changed causes all rows to be recorded again. */
+    private TerminalRenderer mRenderer;
+    private final int[] mPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+    private boolean mReverseVideo;
+    private int mCursorShape;
+    private int mColumns;
+    private int mWidth;
+
+    /** Same as {@link TerminalRenderer#render}, but reusing the recordings of unchanged rows from the last frame. */
+    void render(TerminalRenderer renderer, TerminalEmulator emulator, Canvas canvas, int width, int topRow,
+                int selectionY1, int selectionY2, int selectionX1, int selectionX2, boolean cursorBlinkOn) {
+        final boolean reverseVideo = emulator.isReverseVideo();
+        final int endRow = topRow + emulator.mRows;
+        final int columns = emulator.mColumns;
+        final int cursorCol = emulator.getCursorCol();
+        final int cursorRow = emulator.getCursorRow();
+        final boolean cursorVisible = cursorBlinkOn && emulator.isShowingCursor();
+        final int cursorShape = emulator.getCursorStyle();
+        final TerminalBuffer screen = emulator.getScreen();
+        final int[] palette = emulator.mColors.mCurrentColors;
+
+        if (renderer != mRenderer || reverseVideo != mReverseVideo || cursorShape != mCursorShape || columns != mColumns
+            || width != mWidth || !Arrays.equals(palette, mPalette)) {
+            discardAll();
+            mRenderer = renderer;
+            mReverseVideo = reverseVideo;
+            mCursorShape = cursorShape;
+            mColumns = columns;
+            mWidth = width;
+            System.arraycopy(palette, 0, mPalette, 0, mPalette.length);
+        }
+
+        if (reverseVideo)
+            canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
+
+        // All rows are recorded as if they were the first row on screen and positioned afterwards, so that a row
+        // scrolling to another place on screen can keep its recording.
+        final float firstRowHeightOffset = renderer.mFontLineSpacingAndAscent + renderer.mFontLineSpacing;
+        final int nodeHeight = renderer.mFontLineSpacingAndAscent + renderer.mFontLineSpacing;
+
+        TerminalRow cursorLine = null;
+        for (int row = topRow; row < endRow; row++) {
+            int selx1 = -1, selx2 = -1;
+            if (row >= selectionY1 && row <= selectionY2) {
+                if (row == selectionY1) selx1 = selectionX1;
+                selx2 = (row == selectionY2) ? selectionX2 : columns;
+            }
+
+            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+            RowDisplayList displayList = mRows.remove(lineObject);
+            if (displayList == null) displayList = obtainRowDisplayList();
+
+            final RenderNode node = displayList.mNode;
+            if (!node.hasDisplayList() || displayList.mVersion != lineObject.getVersion() || displayList.mSelX1 != selx1 || displayList.mSelX2 != selx2) {
+                RecordingCanvas recordingCanvas = node.beginRecording(width, nodeHeight);
+                try {
+                    renderer.drawRow(recordingCanvas, lineObject, firstRowHeightOffset, selx1, selx2, columns, palette, cursorShape,
+                        reverseVideo);
+                } finally {
+                    node.endRecording();
+                }
+                displayList.mVersion = lineObject.getVersion();
+                displayList.mSelX1 = selx1;
+                displayList.mSelX2 = selx2;
+            }
+
+            final int top = (row - topRow) * renderer.mFontLineSpacing;
+            node.setPosition(0, top, width, top + nodeHeight);
+            canvas.drawRenderNode(node);
+            mNextRows.put(lineObject, displayList);
+            if (row == cursorRow) cursorLine = lineObject;
+        }
+
+        // The cursor is drawn on top of the rows instead of being recorded into them, so that it can move and blink
+        // without any row having to be recorded again.
+        if (cursorVisible && cursorLine != null) {
+            float heightOffset = firstRowHeightOffset + (cursorRow - topRow) * renderer.mFontLineSpacing;
+            renderer.drawCursor(canvas, cursorLine, heightOffset, cursorCol, palette, cursorShape, reverseVideo);
+        }
+
+        // Rows left are no longer displayed:
+        for (RowDisplayList unused : mRows.values()) releaseRowDisplayList(unused);
+        mRows.clear();
+
+        IdentityHashMap<TerminalRow, RowDisplayList> tmp = mRows;
+        mRows = mNextRows;
+        mNextRows = tmp;
+    }
+
+    /** Free all recorded rows, for instance when the view is detached from its window. */
+    void discardAll() {
+        for (RowDisplayList displayList : mRows.values()) releaseRowDisplayList(displayList);
+        mRows.clear();
+    }
+
+    private RowDisplayList obtainRowDisplayList() {
+        final int size = mFreeRows.size();
+        if (size == 0) {
+            RowDisplayList displayList = new RowDisplayList();
+            // Glyph descents and scaled runs may extend slightly outside of the row.
+            displayList.mNode.setClipToBounds(false);
+            return displayList;
+        }
+        return mFreeRows.remove(size - 1);
+    }
+
+    private void releaseRowDisplayList(RowDisplayList displayList) {
+        displayList.mNode.discardDisplayList();
+        mFreeRows.add(displayList);
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.termux.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.termux.terminal.EmulatorDebug;
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalScreenSnapshot;
+
+/**
+ * A surface on which the text of a {@link TerminalView} is drawn from a dedicated render thread at vsync, leaving the
+ * main thread to only process input and take snapshots of the emulator state.
+ * <p/>
+ * Placed directly behind its {@link TerminalView}, covering the same area, and enabled with
+ * {@link TerminalView#setRenderBackend(TerminalSurfaceView)}.
+ */
+public final class TerminalSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+
+    /** Log the time spent drawing each frame on the render thread. */
+    private static final boolean LOG_FRAME_TIMES = false;
+
+    /** Guards {@link #mPendingSnapshot}, {@link #mPendingTextSize}, {@link #mPendingTypeface} and {@link #mDirty}. */
+    private final Object mLock = new Object();
+    /** The snapshot filled by the main thread, swapped with {@link #mRenderSnapshot} when a frame is drawn. */
+    private TerminalScreenSnapshot mPendingSnapshot = new TerminalScreenSnapshot();
+    private int mPendingTextSize;
+    private Typeface mPendingTypeface;
+    /** If a snapshot has been taken which has not yet been drawn. */
+    private boolean mDirty;
+
+    /** The snapshot being drawn, only accessed on the render thread. */
+    private TerminalScreenSnapshot mRenderSnapshot = new TerminalScreenSnapshot();
+    /** The text size and typeface that {@link #mRenderSnapshot} should be drawn with, or null if none taken yet. */
+    private int mRenderTextSize;
+    private Typeface mRenderTypeface;
+    /** If {@link #mRenderSnapshot} should be drawn again since the surface has changed. */
+    private boolean mRedrawNeeded;
+    /** The renderer used on the render thread, separate from that of the view since renderers are not thread safe. */
+    private TerminalRenderer mRenderer;
+    /** The surface holder while the surface exists, only accessed on the render thread. */
+    private SurfaceHolder mSurfaceHolder;
+
+    private HandlerThread mRenderThread;
+    private Handler mRenderHandler;
+    /** If a frame callback has been requested but not yet run, only accessed on the render thread. */
+    private boolean mFrameScheduled;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            drawFrame();
+        }
+    };
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (!mFrameScheduled) {
+                mFrameScheduled = true;
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            }
+        }
+    };
+
+    public TerminalSurfaceView(Context context) {
+        super(context);
+        getHolder().addCallback(this);
+    }
+
+    public TerminalSurfaceView(Context context, AttributeSet attributes) {
+        super(context, attributes);
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Take a snapshot of the emulator and schedule it to be drawn at the next vsync. Called on the main thread.
+     */
+    void update(TerminalRenderer renderer, TerminalEmulator emulator, int topRow, int selY1, int selY2, int selX1,
+                int selX2, boolean cursorBlinkOn) {
+        synchronized (mLock) {
+            mPendingSnapshot.copyFrom(emulator, topRow, selY1, selY2, selX1, selX2, cursorBlinkOn);
+            mPendingTextSize = renderer.mTextSize;
+            mPendingTypeface = renderer.mTypeface;
+            mDirty = true;
+        }
+        if (mRenderHandler != null) mRenderHandler.post(mScheduleFrame);
+    }
+
+    @Override
+    public void surfaceCreated(final SurfaceHolder holder) {
+        mRenderThread = new HandlerThread("TerminalRender");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSurfaceHolder = holder;
+            }
+        });
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Draw the last snapshot again on the resized surface:
+                mRedrawNeeded = true;
+                mScheduleFrame.run();
+            }
+        });
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // The surface may not be used after returning, so wait for the render thread to finish with it:
+        final HandlerThread renderThread = mRenderThread;
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSurfaceHolder = null;
+                if (mFrameScheduled) {
+                    Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+                    mFrameScheduled = false;
+                }
+                renderThread.quit();
+            }
+        });
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRenderThread = null;
+        mRenderHandler = null;
+    }
+
+    /** Draw the latest snapshot, if changed since the last frame. Called on the render thread. */
+    void drawFrame() {
+        if (mSurfaceHolder == null) return;
+
+        synchronized (mLock) {
+            if (mDirty) {
+                mDirty = false;
+                TerminalScreenSnapshot tmp = mRenderSnapshot;
+                mRenderSnapshot = mPendingSnapshot;
+                mPendingSnapshot = tmp;
+                mRenderTextSize = mPendingTextSize;
+                mRenderTypeface = mPendingTypeface;
+            } else if (!mRedrawNeeded) {
+                return;
+            }
+        }
+        mRedrawNeeded = false;
+        if (mRenderTypeface == null) return;
+
+        if (mRenderer == null || mRenderer.mTextSize != mRenderTextSize || mRenderer.mTypeface != mRenderTypeface) {
+            mRenderer = new TerminalRenderer(mRenderTextSize, mRenderTypeface);
+        }
+
+        final long startTime = LOG_FRAME_TIMES ? System.nanoTime() : 0;
+        Canvas canvas = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) ? mSurfaceHolder.lockHardwareCanvas() : mSurfaceHolder.lockCanvas();
+        if (canvas == null) return;
+        try {
+            mRenderer.render(mRenderSnapshot, canvas);
+        } finally {
+            mSurfaceHolder.unlockCanvasAndPost(canvas);
+        }
+        if (LOG_FRAME_TIMES)
+            Log.i(EmulatorDebug.LOG_TAG, "Terminal frame drawn in " + (System.nanoTime() - startTime) / 1000 + " us");
+    }
+
+}
@@ -7,6 +7,7 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
 import android.text.Editable;
 import android.text.InputType;
 import android.text.TextUtils;
@@ -53,6 +54,23 @@ public final class TerminalView extends View {
     TerminalEmulator mEmulator;
 
     TerminalRenderer mRenderer;
+    /** Cached per-row drawings used when drawing hardware accelerated, created on first use. */
+    private TerminalRowDisplayLists mRowDisplayLists;
+    /** If non-null, the surface behind this view that the terminal text is drawn on from a render thread. */
+    private TerminalSurfaceView mRenderBackend;
+
+    /** The interval in milliseconds between cursor blink phases, or 0 if the cursor should not blink. */
+    private int mCursorBlinkRate;
+    /** If the cursor is currently in its visible blink phase. */
+    boolean mCursorBlinkOn = true;
+    private final Runnable mCursorBlinker = new Runnable() {
+        @Override
+        public void run() {
+            mCursorBlinkOn = !mCursorBlinkOn;
+            invalidateCursor();
+            postDelayed(this, mCursorBlinkRate);
+        }
+    };
 
     TerminalViewClient mClient;
 
@@ -274,6 +292,7 @@ public final class TerminalView extends View {
         if (session == mTermSession) return false;
         mTopRow = 0;
 
+        if (mTermSession != null) mTermSession.setVisible(false);
         mTermSession = session;
         mEmulator = null;
         mCombiningAccent = 0;
@@ -283,9 +302,25 @@ public final class TerminalView extends View {
         // Wait with enabling the scrollbar until we have a terminal to get scroll position from.
         setVerticalScrollBarEnabled(true);
 
+        // Catches up with any output received while the session was not displayed:
+        session.setVisible(getWindowVisibility() == VISIBLE);
+
         return true;
     }
 
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (mTermSession != null) mTermSession.setVisible(visibility == VISIBLE);
+        updateCursorBlink();
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasWindowFocus) {
+        super.onWindowFocusChanged(hasWindowFocus);
+        updateCursorBlink();
+    }
+
     @Override
     public InputConnection onCreateInputConnection(EditorInfo outAttrs) {
         // Using InputType.NULL is the most correct input type and avoids issues with other hacks.
@@ -441,7 +476,15 @@ public final class TerminalView extends View {
 
         mEmulator.clearScrollCounter();
 
-        invalidate();
+        // Keep the cursor visible while there is output, and start blinking again afterwards:
+        if (shouldBlinkCursor()) restartCursorBlink();
+
+        if (mRenderBackend != null && !mIsSelectingText) {
+            // Nothing of this view itself needs to be drawn again.
+            updateRenderBackend();
+        } else {
+            invalidate();
+        }
         if (mAccessibilityEnabled) setContentDescription(getText());
     }
 
@@ -451,12 +494,63 @@ public final class TerminalView extends View {
      * @param textSize the new font size, in density-independent pixels.
      */
     public void setTextSize(int textSize) {
-        mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
+        mRenderer = TerminalRenderer.obtain(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
         updateSize();
     }
 
+    /**
+     * Sets the interval between cursor blink phases.
+     *
+     * @param blinkRate the interval in milliseconds, or 0 to show the cursor without blinking.
+     */
+    public void setCursorBlinkRate(int blinkRate) {
+        mCursorBlinkRate = blinkRate;
+        updateCursorBlink();
+    }
+
+    /**
+     * If the cursor should blink now. Not while the window is hidden or unfocused, to not keep waking up the main thread
+     * for a cursor which nobody is looking at or typing into.
+     */
+    private boolean shouldBlinkCursor() {
+        return mCursorBlinkRate > 0 && isAttachedToWindow() && getWindowVisibility() == VISIBLE && hasWindowFocus();
+    }
+
+    /** Start or stop blinking the cursor as {@link #shouldBlinkCursor()}, showing it steadily when stopped. */
+    private void updateCursorBlink() {
+        if (shouldBlinkCursor()) {
+            restartCursorBlink();
+        } else {
+            removeCallbacks(mCursorBlinker);
+            if (!mCursorBlinkOn) {
+                mCursorBlinkOn = true;
+                invalidateCursor();
+            }
+        }
+    }
+
+    private void restartCursorBlink() {
+        removeCallbacks(mCursorBlinker);
+        mCursorBlinkOn = true;
+        postDelayed(mCursorBlinker, mCursorBlinkRate);
+    }
+
+    /** Invalidate only the area around the cursor, which is all that changes when it blinks. */
+    void invalidateCursor() {
+        if (mEmulator == null) return;
+        if (mRenderBackend != null) {
+            updateRenderBackend();
+            return;
+        }
+        // Include the neighbouring cells since the cursor may be on either half of a wide character:
+        int left = (int) ((mEmulator.getCursorCol() - 1) * mRenderer.mFontWidth);
+        int right = (int) Math.ceil((mEmulator.getCursorCol() + 2) * mRenderer.mFontWidth);
+        int top = (mEmulator.getCursorRow() - mTopRow) * mRenderer.mFontLineSpacing + mRenderer.mFontLineSpacingAndAscent;
+        invalidate(left, top, right, top + mRenderer.mFontLineSpacing);
+    }
+
     public void setTypeface(Typeface newTypeface) {
-        mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
+        mRenderer = TerminalRenderer.obtain(mRenderer.mTextSize, newTypeface);
         updateSize();
         invalidate();
     }
@@ -468,7 +562,25 @@ public final class TerminalView extends View {
 
     @Override
     public boolean isOpaque() {
-        return true;
+        return mRenderBackend == null;
+    }
+
+    /**
+     * Draw the terminal text on a surface from a render thread instead of in {@link #onDraw(Canvas)}, leaving only
+     * input handling and selection handles to this view.
+     *
+     * @param backend a surface placed directly behind this view and covering the same area, or null to draw the text in
+     *                this view again.
+     */
+    public void setRenderBackend(TerminalSurfaceView backend) {
+        mRenderBackend = backend;
+        if (mRowDisplayLists != null) mRowDisplayLists.discardAll();
+        if (backend != null && mEmulator != null) updateRenderBackend();
+        invalidate();
+    }
+
+    private void updateRenderBackend() {
+        mRenderBackend.update(mRenderer, mEmulator, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2, mCursorBlinkOn);
     }
 
     /**
@@ -803,6 +915,19 @@ public final class TerminalView extends View {
         return true;
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateCursorBlink();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(mCursorBlinker);
+        if (mRowDisplayLists != null) mRowDisplayLists.discardAll();
+    }
+
     /**
      * This is called during layout when the size of this view has changed. If you were just added to the view
      * hierarchy, you're called with the old values of 0.
@@ -837,9 +962,17 @@ public final class TerminalView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         if (mEmulator == null) {
-            canvas.drawColor(0XFF000000);
+            if (mRenderBackend == null) canvas.drawColor(0XFF000000);
         } else {
-            mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2);
+            if (mRenderBackend != null) {
+                updateRenderBackend();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+                if (mRowDisplayLists == null) mRowDisplayLists = new TerminalRowDisplayLists();
+                mRowDisplayLists.render(mRenderer, mEmulator, canvas, getWidth(), mTopRow, mSelY1, mSelY2, mSelX1, mSelX2, mCursorBlinkOn);
+            } else {
+                mRenderer.render(mEmulator, canvas, mTopRow, mSelY1, mSelY2, mSelX1, mSelX2, mCursorBlinkOn);
+            }
+            mTermSession.onScreenDrawn();
 
             if (mIsSelectingText) {
                 final int gripHandleWidth = mLeftSelectionHandle.getIntrinsicWidth();
@@ -0,0 +1,82 @@
+#!/usr/bin/env python3
+"""Convert a Termux bootstrap zip into a bootstrap image.
+
+The image is installed by the app with one sequential read instead of
+extracting the zip entry by entry, see src/com/termux/app/BootstrapImage.java
+for the format. Put the result in assets/bootstrap.img; the app prefers it
+over assets/bootstrap.zip when both are present.
+
+Usage: bootstrap-image.py bootstrap-aarch64.zip assets/bootstrap.img
+"""
+
+import struct
+import sys
+import zipfile
+import zlib
+
+MAGIC = b"TRMXBOOT"
+VERSION = 1
+TYPE_DIRECTORY, TYPE_FILE, TYPE_SYMLINK = 0, 1, 2
+
+
+def is_executable(path):
+    # Keep in sync with BootstrapExtractor.isExecutable().
+    return path.startswith("bin/") or path.startswith("libexec") or path.startswith("lib/apt/methods")
+
+
+def encode_string(value):
+    data = value.encode("utf-8")
+    return struct.pack(">H", len(data)) + data
+
+
+def main(zip_path, image_path):
+    directories = set()
+    files = []
+    symlinks = []
+    with zipfile.ZipFile(zip_path) as bootstrap:
+        for info in bootstrap.infolist():
+            if info.filename == "SYMLINKS.txt":
+                for line in bootstrap.read(info).decode("utf-8").splitlines():
+                    target, path = line.split("←")
+                    symlinks.append((path, target))
+            elif info.is_dir():
+                directories.add(info.filename.rstrip("/"))
+            else:
+                files.append((info.filename, bootstrap.read(info)))
+
+    for path in [name for name, _ in files] + [path for path, _ in symlinks]:
+        parent = path.rpartition("/")[0]
+        while parent:
+            directories.add(parent)
+            parent = parent.rpartition("/")[0]
+
+    # Sorted files keep the contents of each directory together in the data.
+    files.sort()
+    table = bytearray()
+    data_offset = 0
+    for path in sorted(directories):
+        table += struct.pack(">BH", TYPE_DIRECTORY, 0o700) + encode_string(path)
+    for path, content in files:
+        mode = 0o700 if is_executable(path) else 0o600
+        table += struct.pack(">BH", TYPE_FILE, mode) + encode_string(path)
+        table += struct.pack(">QQI", data_offset, len(content), zlib.crc32(content) & 0xFFFFFFFF)
+        data_offset += len(content)
+    for path, target in symlinks:
+        table += struct.pack(">BH", TYPE_SYMLINK, 0o777) + encode_string(path) + encode_string(target)
+
+    entry_count = len(directories) + len(files) + len(symlinks)
+    header_size = len(MAGIC) + 16
+    with open(image_path, "wb") as image:
+        image.write(MAGIC + struct.pack(">IIQ", VERSION, entry_count, header_size + len(table)))
+        image.write(table)
+        for _, content in files:
+            image.write(content)
+
+    print("%s: %d directories, %d files (%d bytes), %d symlinks"
+          % (image_path, len(directories), len(files), data_offset, len(symlinks)))
+
+
+if __name__ == "__main__":
+    if len(sys.argv) != 3:
+        sys.exit(__doc__)
+    main(sys.argv[1], sys.argv[2])
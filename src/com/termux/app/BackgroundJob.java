@@ -1,124 +1,343 @@
 package com.termux.app;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A background job launched by Termux.
+ * <p/>
+ * Jobs are started by the {@link BackgroundJobScheduler} of the service, which decides when and how many to run, and run
+ * on a small shared pool of threads with room for {@link #MAX_CONCURRENT_JOBS} jobs at once. Both stdout and stderr
+ * are drained as they are written, so that a process is never blocked on a full pipe, and the last
+ * {@link #OUTPUT_CAPTURE_BYTES} of each are kept to be retrieved with {@link #getStdout()} and {@link #getStderr()}.
+ * <p/>
+ * A job is done when its process has exited, not when its output reaches end of file, since processes it has started
+ * in the background may keep the pipes open long after, and {@link #kill()} only kills the process itself.
  */
 public final class BackgroundJob {
 
     private static final String LOG_TAG = "termux-task";
 
-    final Process mProcess;
+    /** The maximum number of jobs running at the same time. */
+    static final int MAX_CONCURRENT_JOBS = 4;
+    /** The number of trailing bytes of stdout and stderr kept for each job. */
+    static final int OUTPUT_CAPTURE_BYTES = 16 * 1024;
+    /** The exit code of a job whose process could not be started. */
+    public static final int EXIT_CODE_NOT_STARTED = -1;
+
+    /** How long to keep reading the output of a job after its process has exited, before closing the pipes. */
+    private static final long DRAIN_AFTER_EXIT_MILLIS = 1000;
+
+    /** Runs the jobs, each thread starting a process and waiting for it to exit. */
+    private static final ThreadPoolExecutor sJobExecutor = newExecutor("TermuxJob", MAX_CONCURRENT_JOBS);
+    /** Drains the stdout and stderr of running jobs, with two threads per job thread so that draining never waits. */
+    private static final ThreadPoolExecutor sDrainExecutor = newExecutor("TermuxJobOutput", 2 * MAX_CONCURRENT_JOBS);
+
+    private static ThreadPoolExecutor newExecutor(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+            }
+        });
+        // Do not keep idle threads around when no jobs are run:
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final String[] mProgArray;
+    private final String[] mEnvironment;
+    private final String mCwd;
+    private final String mDescription;
+    private final TermuxService mService;
+
+    private final OutputRing mStdout = new OutputRing(OUTPUT_CAPTURE_BYTES);
+    private final OutputRing mStderr = new OutputRing(OUTPUT_CAPTURE_BYTES);
+
+    /** The process of the job, or null if not started yet or if starting it failed. */
+    volatile Process mProcess;
+    private volatile int mExitCode;
+    private volatile boolean mFinished;
+    /** If {@link #kill()} has been called for the current run. */
+    private volatile boolean mKilled;
 
     public BackgroundJob(String cwd, String fileToExecute, final String[] args, final TermuxService service) {
-        String[] env = buildEnvironment(false, cwd);
-        if (cwd == null) cwd = TermuxService.HOME_PATH;
+        mEnvironment = buildEnvironment(false, cwd);
+        mCwd = (cwd == null) ? TermuxService.HOME_PATH : cwd;
+        mProgArray = setupProcessArgs(fileToExecute, args);
+        mDescription = Arrays.toString(mProgArray);
+        mService = service;
+    }
+
+    /**
+     * Run the process of this job on the job threads, calling {@link TermuxService#onBackgroundJobExited(BackgroundJob)}
+     * when done. May be called again once finished to run the job again, which discards the earlier output.
+     */
+    void start() {
+        mProcess = null;
+        mFinished = mKilled = false;
+        mStdout.clear();
+        mStderr.clear();
+        // Never rejected since the executor has an unbounded queue and is never shut down:
+        sJobExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runProcess(mService);
+            }
+        });
+    }
+
+    /** Kill the process of this job if running, or as soon as it has been started. */
+    void kill() {
+        mKilled = true;
+        Process process = mProcess;
+        if (process != null) process.destroy();
+    }
+
+    /** If the current run of this job has been killed with {@link #kill()}. */
+    boolean wasKilled() {
+        return mKilled;
+    }
+
+    /** A key identifying the command of this job, equal for jobs running the same command the same way. */
+    String getCommandKey() {
+        StringBuilder key = new StringBuilder(mCwd);
+        for (String arg : mProgArray) key.append('\0').append(arg);
+        return key.toString();
+    }
 
-        final String[] progArray = setupProcessArgs(fileToExecute, args);
-        final String processDescription = Arrays.toString(progArray);
+    /** A description of the command of this job for logging. */
+    String getDescription() {
+        return mDescription;
+    }
 
-        Process process;
+    private void runProcess(TermuxService service) {
+        final Process process;
         try {
-            process = Runtime.getRuntime().exec(progArray, env, new File(cwd));
+            process = Runtime.getRuntime().exec(mProgArray, mEnvironment, new File(mCwd));
         } catch (IOException e) {
-            mProcess = null;
             // TODO: Visible error message?
-            Log.e(LOG_TAG, "Failed running background job: " + processDescription, e);
+            Log.e(LOG_TAG, "Failed running background job: " + mDescription, e);
+            finish(EXIT_CODE_NOT_STARTED, service);
             return;
         }
 
         mProcess = process;
-        final int pid = getPid(mProcess);
+        // Close the race with kill() having been called before the process was started:
+        if (mKilled) process.destroy();
+        final int pid = getPid(process);
+        Log.i(LOG_TAG, "[" + pid + "] starting: " + mDescription);
 
-        new Thread() {
-            @Override
-            public void run() {
-                Log.i(LOG_TAG, "[" + pid + "] starting: " + processDescription);
-                InputStream stdout = mProcess.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stdout, StandardCharsets.UTF_8));
-                String line;
-                try {
-                    // FIXME: Long lines.
-                    while ((line = reader.readLine()) != null) {
-                        Log.i(LOG_TAG, "[" + pid + "] stdout: " + line);
-                    }
-                } catch (IOException e) {
-                    Log.e(LOG_TAG, "Error reading output", e);
-                }
+        // Background jobs get no input, so let them see end of file instead of blocking on reading stdin:
+        try {
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            // Ignore.
+        }
 
-                try {
-                    int exitCode = mProcess.waitFor();
-                    service.onBackgroundJobExited(BackgroundJob.this);
-                    if (exitCode == 0) {
-                        Log.i(LOG_TAG, "[" + pid + "] exited normally");
-                    } else {
-                        Log.w(LOG_TAG, "[" + pid + "] exited with code: " + exitCode);
-                    }
-                } catch (InterruptedException e) {
-                    // Ignore.
-                }
-            }
-        }.start();
+        final Future<?> stdoutDrained = submitDrain(process.getInputStream(), mStdout);
+        final Future<?> stderrDrained = submitDrain(process.getErrorStream(), mStderr);
 
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "[" + pid + "] interrupted while waiting for exit", e);
+            process.destroy();
+            exitCode = EXIT_CODE_NOT_STARTED;
+        }
 
-        new Thread() {
+        // Processes left running in the background may keep the pipes open, so only read what is left for a while:
+        final long drainDeadline = SystemClock.uptimeMillis() + DRAIN_AFTER_EXIT_MILLIS;
+        if (!awaitDrained(stdoutDrained, drainDeadline) | !awaitDrained(stderrDrained, drainDeadline)) {
+            Log.w(LOG_TAG, "[" + pid + "] output still open after exit, not reading more");
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+        }
+
+        if (mStdout.getTotalBytes() > 0) Log.i(LOG_TAG, "[" + pid + "] stdout: " + getStdout());
+        if (mStderr.getTotalBytes() > 0) Log.i(LOG_TAG, "[" + pid + "] stderr: " + getStderr());
+        if (exitCode == 0) {
+            Log.i(LOG_TAG, "[" + pid + "] exited normally");
+        } else {
+            Log.w(LOG_TAG, "[" + pid + "] exited with code: " + exitCode);
+        }
+        finish(exitCode, service);
+    }
+
+    private void finish(int exitCode, TermuxService service) {
+        mExitCode = exitCode;
+        mFinished = true;
+        service.onBackgroundJobExited(this);
+    }
+
+    /** Read from a stream in chunks until end of file on a drain thread, keeping what was read in a ring. */
+    private static Future<?> submitDrain(final InputStream in, final OutputRing ring) {
+        return sDrainExecutor.submit(new Runnable() {
             @Override
             public void run() {
-                InputStream stderr = mProcess.getErrorStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, StandardCharsets.UTF_8));
-                String line;
+                byte[] buffer = new byte[4096];
                 try {
-                    // FIXME: Long lines.
-                    while ((line = reader.readLine()) != null) {
-                        Log.i(LOG_TAG, "[" + pid + "] stderr: " + line);
-                    }
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1)
+                        ring.write(buffer, 0, bytesRead);
                 } catch (IOException e) {
-                    // Ignore.
+                    // Ignore, the process has closed the stream or it has been closed after the process exited.
+                } finally {
+                    closeQuietly(in);
                 }
             }
-        };
+        });
+    }
+
+    /** Wait until a stream has been drained, returning false if not done by the deadline in uptime milliseconds. */
+    private static boolean awaitDrained(Future<?> drained, long deadline) {
+        try {
+            drained.get(Math.max(0, deadline - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | InterruptedException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    /** Close a stream, which also makes a thread blocked reading from it return. */
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /** If the process of this job has exited, or could not be started. */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /** The exit code of the process, or {@link #EXIT_CODE_NOT_STARTED}. Only valid once {@link #isFinished()}. */
+    public int getExitCode() {
+        return mExitCode;
+    }
+
+    /** The last {@link #OUTPUT_CAPTURE_BYTES} written to stdout so far. */
+    public String getStdout() {
+        return new String(mStdout.toByteArray(), StandardCharsets.UTF_8);
     }
 
+    /** The last {@link #OUTPUT_CAPTURE_BYTES} written to stderr so far. */
+    public String getStderr() {
+        return new String(mStderr.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** A fixed size buffer keeping the last bytes written to it. */
+    static final class OutputRing {
+
+        private final byte[] mBuffer;
+        /** The number of bytes written in total, of which the last {@code mBuffer.length} are kept. */
+        private long mTotalBytes;
+
+        OutputRing(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized void write(byte[] data, int offset, int length) {
+            final int capacity = mBuffer.length;
+            if (length > capacity) {
+                // Only the end of the data is kept:
+                offset += length - capacity;
+                mTotalBytes += length - capacity;
+                length = capacity;
+            }
+            final int position = (int) (mTotalBytes % capacity);
+            final int firstPart = Math.min(length, capacity - position);
+            System.arraycopy(data, offset, mBuffer, position, firstPart);
+            System.arraycopy(data, offset + firstPart, mBuffer, 0, length - firstPart);
+            mTotalBytes += length;
+        }
+
+        synchronized void clear() {
+            mTotalBytes = 0;
+        }
+
+        synchronized long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        synchronized byte[] toByteArray() {
+            final int capacity = mBuffer.length;
+            if (mTotalBytes <= capacity) return Arrays.copyOf(mBuffer, (int) mTotalBytes);
+            final int position = (int) (mTotalBytes % capacity);
+            byte[] result = new byte[capacity];
+            System.arraycopy(mBuffer, position, result, 0, capacity - position);
+            System.arraycopy(mBuffer, 0, result, capacity - position, position);
+            return result;
+        }
+    }
+
+    /**
+     * The environment variables which do not depend on the working directory, built on first use since looking them up
+     * and concatenating them again for every started process is wasted work.
+     */
+    private static String[] sEnvironment, sFailSafeEnvironment;
+    /** The index of the PWD entry in {@link #sEnvironment}. */
+    private static final int PWD_INDEX = 6;
+
     public static String[] buildEnvironment(boolean failSafe, String cwd) {
         new File(TermuxService.HOME_PATH).mkdirs();
 
         if (cwd == null) cwd = TermuxService.HOME_PATH;
 
-        final String termEnv = "TERM=xterm-256color";
-        final String homeEnv = "HOME=" + TermuxService.HOME_PATH;
-        final String prefixEnv = "PREFIX=" + TermuxService.PREFIX_PATH;
-        final String androidRootEnv = "ANDROID_ROOT=" + System.getenv("ANDROID_ROOT");
-        final String androidDataEnv = "ANDROID_DATA=" + System.getenv("ANDROID_DATA");
-        // EXTERNAL_STORAGE is needed for /system/bin/am to work on at least
-        // Samsung S7 - see https://plus.google.com/110070148244138185604/posts/gp8Lk3aCGp3.
-        final String externalStorageEnv = "EXTERNAL_STORAGE=" + System.getenv("EXTERNAL_STORAGE");
-        if (failSafe) {
-            // Keep the default path so that system binaries can be used in the failsafe session.
-            final String pathEnv = "PATH=" + System.getenv("PATH");
-            return new String[]{termEnv, homeEnv, prefixEnv, androidRootEnv, androidDataEnv, pathEnv, externalStorageEnv};
-        } else {
-            final String ldEnv = "LD_LIBRARY_PATH=" + TermuxService.PREFIX_PATH + "/lib";
-            final String langEnv = "LANG=en_US.UTF-8";
-            final String pathEnv = "PATH=" + TermuxService.PREFIX_PATH + "/bin:" + TermuxService.PREFIX_PATH + "/bin/applets";
-            final String pwdEnv = "PWD=" + cwd;
-            final String tmpdirEnv = "TMPDIR=" + TermuxService.PREFIX_PATH + "/tmp";
+        synchronized (BackgroundJob.class) {
+            if (sEnvironment == null) {
+                final String termEnv = "TERM=xterm-256color";
+                final String homeEnv = "HOME=" + TermuxService.HOME_PATH;
+                final String prefixEnv = "PREFIX=" + TermuxService.PREFIX_PATH;
+                final String androidRootEnv = "ANDROID_ROOT=" + System.getenv("ANDROID_ROOT");
+                final String androidDataEnv = "ANDROID_DATA=" + System.getenv("ANDROID_DATA");
+                // EXTERNAL_STORAGE is needed for /system/bin/am to work on at least
+                // Samsung S7 - see https://plus.google.com/110070148244138185604/posts/gp8Lk3aCGp3.
+                final String externalStorageEnv = "EXTERNAL_STORAGE=" + System.getenv("EXTERNAL_STORAGE");
+
+                // Keep the default path so that system binaries can be used in the failsafe session.
+                final String failSafePathEnv = "PATH=" + System.getenv("PATH");
+                sFailSafeEnvironment = new String[]{termEnv, homeEnv, prefixEnv, androidRootEnv, androidDataEnv, failSafePathEnv, externalStorageEnv};
 
-            return new String[]{termEnv, homeEnv, prefixEnv, ldEnv, langEnv, pathEnv, pwdEnv, androidRootEnv, androidDataEnv, externalStorageEnv, tmpdirEnv};
+                final String ldEnv = "LD_LIBRARY_PATH=" + TermuxService.PREFIX_PATH + "/lib";
+                final String langEnv = "LANG=en_US.UTF-8";
+                final String pathEnv = "PATH=" + TermuxService.PREFIX_PATH + "/bin:" + TermuxService.PREFIX_PATH + "/bin/applets";
+                final String tmpdirEnv = "TMPDIR=" + TermuxService.PREFIX_PATH + "/tmp";
+                sEnvironment = new String[]{termEnv, homeEnv, prefixEnv, ldEnv, langEnv, pathEnv, null, androidRootEnv, androidDataEnv, externalStorageEnv, tmpdirEnv};
+            }
         }
+
+        if (failSafe) return sFailSafeEnvironment.clone();
+        String[] env = sEnvironment.clone();
+        env[PWD_INDEX] = "PWD=" + cwd;
+        return env;
     }
 
     public static int getPid(Process p) {
@@ -0,0 +1,248 @@
+package com.termux.app;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decides when the {@link BackgroundJob}s requested with {@link TermuxService#ACTION_EXECUTE} are run, so that automation
+ * apps sending a flood of intents do not fork hundreds of processes at once.
+ * <p/>
+ * At most {@link BackgroundJob#MAX_CONCURRENT_JOBS} jobs run at once. Waiting jobs are started highest priority first,
+ * and in the order they were requested within a priority. A job requested while an identical one (same command, arguments
+ * and working directory) is still waiting is coalesced with the waiting one. Jobs may be given a timeout after which
+ * they are killed, and a number of retries with exponential backoff if they fail.
+ * <p/>
+ * All methods are to be called on the main thread.
+ */
+final class BackgroundJobScheduler {
+
+    private static final String LOG_TAG = "termux-task";
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    /** The maximum number of jobs waiting to run, beyond which new jobs are dropped. */
+    private static final int MAX_PENDING_JOBS = 256;
+    /** The maximum number of retries of a failed job. */
+    static final int MAX_RETRIES = 5;
+    /** The delay before the first retry of a failed job, doubled for each further retry. */
+    private static final long RETRY_BASE_DELAY_MILLIS = 1000;
+    private static final long RETRY_MAX_DELAY_MILLIS = 60 * 1000;
+    /** The number of finished jobs kept, see {@link #getFinishedJobs()}. */
+    private static final int MAX_FINISHED_JOBS = 16;
+
+    /** The scheduling state of a job. */
+    private static final class Entry {
+        final BackgroundJob mJob;
+        final int mPriority;
+        final long mTimeoutMillis;
+        /** The order in which the job was requested, to run jobs of the same priority first come, first served. */
+        final long mSequence;
+        int mRetriesLeft;
+        /** The number of times the job has been started. */
+        int mRuns;
+        /** The {@link SystemClock#uptimeMillis()} when the job was last queued, for the latency metrics. */
+        long mQueuedAtMillis;
+        Runnable mTimeout;
+
+        Entry(BackgroundJob job, int priority, int retries, long timeoutMillis, long sequence) {
+            mJob = job;
+            mPriority = priority;
+            mRetriesLeft = retries;
+            mTimeoutMillis = timeoutMillis;
+            mSequence = sequence;
+        }
+    }
+
+    private final Handler mHandler;
+
+    private final PriorityQueue<Entry> mPending = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.mPriority != b.mPriority) return (a.mPriority > b.mPriority) ? -1 : 1;
+            return (a.mSequence < b.mSequence) ? -1 : ((a.mSequence == b.mSequence) ? 0 : 1);
+        }
+    });
+    /** The jobs waiting to run or waiting for a retry, by {@link BackgroundJob#getCommandKey()}. */
+    private final HashMap<String, Entry> mPendingByCommand = new HashMap<>();
+    private final List<Entry> mRunning = new ArrayList<>();
+    private final List<BackgroundJob> mFinished = new ArrayList<>();
+    private long mNextSequence;
+    /** If {@link #cancelAll()} has been called, after which no jobs are run or retried. */
+    private boolean mCancelled;
+
+    private int mMaxQueueDepth;
+    private long mJobsStarted, mJobsSucceeded, mJobsFailed, mJobsCoalesced, mJobsDropped, mJobsTimedOut, mJobsRetried;
+    private long mTotalWaitMillis, mMaxWaitMillis;
+
+    BackgroundJobScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Request a job to be run.
+     *
+     * @param priority      one of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} and {@link #PRIORITY_HIGH}.
+     * @param retries       the number of times to run the job again if it fails, at most {@link #MAX_RETRIES}.
+     * @param timeoutMillis the time after which a running job is killed, or 0 to let it run for as long as it takes.
+     * @return false if the job was coalesced with an identical waiting job or dropped since too many jobs are waiting.
+     */
+    boolean schedule(BackgroundJob job, int priority, int retries, long timeoutMillis) {
+        if (mCancelled) return false;
+        final String key = job.getCommandKey();
+        if (mPendingByCommand.containsKey(key)) {
+            mJobsCoalesced++;
+            Log.i(LOG_TAG, "Coalesced with waiting job: " + job.getDescription());
+            return false;
+        }
+        if (mPending.size() >= MAX_PENDING_JOBS) {
+            mJobsDropped++;
+            Log.e(LOG_TAG, "Too many waiting background jobs, dropping: " + job.getDescription());
+            return false;
+        }
+
+        priority = Math.max(PRIORITY_LOW, Math.min(priority, PRIORITY_HIGH));
+        retries = Math.max(0, Math.min(retries, MAX_RETRIES));
+        Entry entry = new Entry(job, priority, retries, Math.max(0, timeoutMillis), mNextSequence++);
+        mPendingByCommand.put(key, entry);
+        enqueue(entry);
+        return true;
+    }
+
+    private void enqueue(Entry entry) {
+        entry.mQueuedAtMillis = SystemClock.uptimeMillis();
+        mPending.add(entry);
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+        startPendingJobs();
+    }
+
+    private void startPendingJobs() {
+        while (mRunning.size() < BackgroundJob.MAX_CONCURRENT_JOBS && !mPending.isEmpty()) {
+            final Entry entry = mPending.poll();
+            mPendingByCommand.remove(entry.mJob.getCommandKey());
+            mRunning.add(entry);
+
+            long waitMillis = SystemClock.uptimeMillis() - entry.mQueuedAtMillis;
+            mTotalWaitMillis += waitMillis;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+            mJobsStarted++;
+            entry.mRuns++;
+
+            if (entry.mTimeoutMillis > 0) {
+                entry.mTimeout = new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.w(LOG_TAG, "Killing background job after " + entry.mTimeoutMillis + " ms: " + entry.mJob.getDescription());
+                        mJobsTimedOut++;
+                        entry.mJob.kill();
+                    }
+                };
+                mHandler.postDelayed(entry.mTimeout, entry.mTimeoutMillis);
+            }
+            entry.mJob.start();
+        }
+    }
+
+    /** Called when the process of a job has exited, or failed to start. */
+    void onJobExited(BackgroundJob job) {
+        Entry entry = null;
+        for (int i = 0; i < mRunning.size(); i++) {
+            if (mRunning.get(i).mJob == job) {
+                entry = mRunning.remove(i);
+                break;
+            }
+        }
+        if (entry == null) return;
+        if (entry.mTimeout != null) {
+            mHandler.removeCallbacks(entry.mTimeout);
+            entry.mTimeout = null;
+        }
+
+        final int exitCode = job.getExitCode();
+        // A job killed by its timeout, and already counted as timed out, is not retried since a hung command would most
+        // likely only time out again, and neither is one killed by cancelAll(). Nor is a command which could not be
+        // started at all, since that will not do better when retried:
+        if (!mCancelled && !job.wasKilled() && exitCode != 0 && exitCode != BackgroundJob.EXIT_CODE_NOT_STARTED
+            && entry.mRetriesLeft > 0 && !mPendingByCommand.containsKey(job.getCommandKey())) {
+            scheduleRetry(entry);
+        } else {
+            if (exitCode == 0) mJobsSucceeded++;
+            else if (!job.wasKilled()) mJobsFailed++;
+            mFinished.add(job);
+            if (mFinished.size() > MAX_FINISHED_JOBS) mFinished.remove(0);
+        }
+
+        startPendingJobs();
+        if (mRunning.isEmpty() && mPending.isEmpty()) Log.i(LOG_TAG, "All background jobs done: " + this);
+    }
+
+    private void scheduleRetry(final Entry entry) {
+        entry.mRetriesLeft--;
+        mJobsRetried++;
+        final long delayMillis = Math.min(RETRY_BASE_DELAY_MILLIS << (entry.mRuns - 1), RETRY_MAX_DELAY_MILLIS);
+        Log.w(LOG_TAG, "Retrying failed background job in " + delayMillis + " ms: " + entry.mJob.getDescription());
+        // Identical requests while waiting for the retry are coalesced with it:
+        mPendingByCommand.put(entry.mJob.getCommandKey(), entry);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingByCommand.get(entry.mJob.getCommandKey()) == entry) enqueue(entry);
+            }
+        }, delayMillis);
+    }
+
+    /** Drop all waiting jobs and kill the running ones, as when the service is stopped. */
+    void cancelAll() {
+        mCancelled = true;
+        mPending.clear();
+        mPendingByCommand.clear();
+        for (Entry entry : mRunning) {
+            if (entry.mTimeout != null) mHandler.removeCallbacks(entry.mTimeout);
+            entry.mJob.kill();
+        }
+    }
+
+    /** The jobs which are running. */
+    List<BackgroundJob> getRunningJobs() {
+        List<BackgroundJob> jobs = new ArrayList<>(mRunning.size());
+        for (Entry entry : mRunning) jobs.add(entry.mJob);
+        return jobs;
+    }
+
+    /** The most recently finished jobs, oldest first, so that their output and exit code can be looked at. */
+    List<BackgroundJob> getFinishedJobs() {
+        return mFinished;
+    }
+
+    /** Fill in the counters and queue metrics so far. */
+    void getStats(BackgroundJobStats stats) {
+        stats.mQueueDepth = mPending.size();
+        stats.mMaxQueueDepth = mMaxQueueDepth;
+        stats.mRunning = mRunning.size();
+        stats.mStarted = mJobsStarted;
+        stats.mSucceeded = mJobsSucceeded;
+        stats.mFailed = mJobsFailed;
+        stats.mCoalesced = mJobsCoalesced;
+        stats.mDropped = mJobsDropped;
+        stats.mTimedOut = mJobsTimedOut;
+        stats.mRetried = mJobsRetried;
+        stats.mAverageWaitMillis = (mJobsStarted == 0) ? 0 : mTotalWaitMillis / mJobsStarted;
+        stats.mMaxWaitMillis = mMaxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        BackgroundJobStats stats = new BackgroundJobStats();
+        getStats(stats);
+        return stats.toString();
+    }
+
+}
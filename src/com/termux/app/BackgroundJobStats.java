@@ -0,0 +1,91 @@
+package com.termux.app;
+
+/**
+ * Counters and queue metrics of the background jobs run by the service since it was created, to find out whether
+ * automation apps are sending more jobs than can be run. Obtained with {@link TermuxService#getBackgroundJobStats()}
+ * on the main thread.
+ */
+public final class BackgroundJobStats {
+
+    int mQueueDepth;
+    int mMaxQueueDepth;
+    int mRunning;
+    long mStarted;
+    long mSucceeded;
+    long mFailed;
+    long mCoalesced;
+    long mDropped;
+    long mTimedOut;
+    long mRetried;
+    long mAverageWaitMillis;
+    long mMaxWaitMillis;
+
+    /** The number of jobs waiting to run. */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /** The largest number of jobs which have been waiting to run at the same time. */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /** The number of jobs running. */
+    public int getRunning() {
+        return mRunning;
+    }
+
+    /** The number of times a job has been started, including retries. */
+    public long getStarted() {
+        return mStarted;
+    }
+
+    /** The number of jobs which have exited with code 0. */
+    public long getSucceeded() {
+        return mSucceeded;
+    }
+
+    /** The number of jobs which have failed and have no retries left, not counting killed ones. */
+    public long getFailed() {
+        return mFailed;
+    }
+
+    /** The number of requested jobs which were merged with an identical waiting job. */
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    /** The number of requested jobs which were dropped since too many jobs were waiting. */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /** The number of jobs which have been killed by their timeout. */
+    public long getTimedOut() {
+        return mTimedOut;
+    }
+
+    /** The number of times a failed job has been scheduled to run again. */
+    public long getRetried() {
+        return mRetried;
+    }
+
+    /** The average time in milliseconds that jobs have waited between being queued and started. */
+    public long getAverageWaitMillis() {
+        return mAverageWaitMillis;
+    }
+
+    /** The longest time in milliseconds that a job has waited between being queued and started. */
+    public long getMaxWaitMillis() {
+        return mMaxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "queued=" + mQueueDepth + " (max " + mMaxQueueDepth + "), running=" + mRunning
+            + ", started=" + mStarted + ", succeeded=" + mSucceeded + ", failed=" + mFailed
+            + ", coalesced=" + mCoalesced + ", dropped=" + mDropped + ", timedOut=" + mTimedOut
+            + ", retried=" + mRetried + ", waitMillis=" + mAverageWaitMillis + " avg/" + mMaxWaitMillis + " max";
+    }
+
+}
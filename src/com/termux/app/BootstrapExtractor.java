@@ -0,0 +1,747 @@
+package com.termux.app;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts the bootstrap zip asset into a staging folder for {@link TermuxInstaller}.
+ * <p/>
+ * The zip is stored uncompressed in the apk, so it can be read through a file descriptor instead of a stream: the central
+ * directory at its end lists all entries and where their data is, so all directories are created up front in one pass
+ * and the entries are then inflated in parallel on all cores, each thread reading its entries with positional reads.
+ * The symlinks listed in SYMLINKS.txt are created while that happens. If the asset can not be opened as a file
+ * descriptor, or its central directory can not be read, the zip is extracted as a stream on a single thread instead.
+ * <p/>
+ * The CRC32 and size of every entry are verified while it is written, by the thread extracting it, so verification
+ * needs no second pass over the data. The first corrupt entry stops the extraction with a
+ * {@link BootstrapIntegrityException} naming the corrupt entries.
+ * <p/>
+ * If the apk contains a {@link BootstrapImage} it is installed instead of the zip, with one sequential pass over its data.
+ * <p/>
+ * What has been extracted is recorded in a {@link BootstrapManifest}, and an update can extract only some of the entries
+ * with {@link #extract(AssetManager, Set)}.
+ */
+final class BootstrapExtractor {
+
+    private static final String LOG_TAG = "termux-installer";
+
+    static final String BOOTSTRAP_ASSET = "bootstrap.zip";
+    private static final String SYMLINKS_ENTRY = "SYMLINKS.txt";
+
+    /** The size of the buffers each extraction thread reads compressed data into and inflates data into. */
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /** The size of the reads from a bootstrap image, each of which is split into as many files as it covers. */
+    private static final int IMAGE_WINDOW_SIZE = 1024 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    /** Receives the progress of the extraction, on any thread. */
+    interface ProgressListener {
+        void onProgress(int percent);
+    }
+
+    /** Thrown when entries of the bootstrap zip are corrupt or truncated. */
+    static final class BootstrapIntegrityException extends IOException {
+        final List<String> mCorruptEntries;
+
+        BootstrapIntegrityException(List<String> corruptEntries) {
+            super("Corrupt bootstrap entries: " + corruptEntries);
+            mCorruptEntries = corruptEntries;
+        }
+    }
+
+    /** An entry as listed in the central directory of the zip. */
+    static final class Record {
+        final String mName;
+        final int mMethod;
+        final long mCrc;
+        final long mCompressedSize;
+        final long mSize;
+        final long mLocalHeaderOffset;
+
+        Record(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+    }
+
+    private final File mTargetDir;
+    private final ProgressListener mListener;
+
+    private final BootstrapManifest mManifest = new BootstrapManifest();
+    private long mBytesTotal;
+    private final AtomicLong mBytesExtracted = new AtomicLong();
+    private final AtomicInteger mLastPercent = new AtomicInteger(-1);
+    /** Set when an extraction thread fails, so that the others stop early. */
+    private final AtomicBoolean mFailed = new AtomicBoolean();
+    /** The entries found to be corrupt, added to by all extraction threads. */
+    private final List<String> mCorruptEntries = Collections.synchronizedList(new ArrayList<String>());
+
+    BootstrapExtractor(File targetDir, ProgressListener listener) {
+        mTargetDir = targetDir;
+        mListener = listener;
+    }
+
+    /** If the file at a path relative to $PREFIX should be executable. */
+    static boolean isExecutable(String path) {
+        return path.startsWith("bin/") || path.startsWith("libexec") || path.startsWith("lib/apt/methods");
+    }
+
+    /**
+     * The entries of the bootstrap zip, without modification times since nothing is extracted. Returns null if the zip
+     * can not be read through a file descriptor, in which case only {@link #extract(AssetManager)} is possible.
+     */
+    BootstrapManifest readManifest(AssetManager assets) throws IOException {
+        AssetFileDescriptor imageFd = openAssetFd(assets, BootstrapImage.BOOTSTRAP_IMAGE_ASSET);
+        if (imageFd != null) {
+            try (FileInputStream in = new FileInputStream(imageFd.getFileDescriptor())) {
+                BootstrapImage image = BootstrapImage.read(in.getChannel(), imageFd.getStartOffset(), imageFd.getLength());
+                for (BootstrapImage.Entry entry : image.mEntries) addToManifest(entry);
+                mManifest.computeBootstrapId();
+                return mManifest;
+            } finally {
+                imageFd.close();
+            }
+        }
+
+        AssetFileDescriptor assetFd;
+        try {
+            assetFd = assets.openFd(BOOTSTRAP_ASSET);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(assetFd.getFileDescriptor())) {
+            final FileChannel channel = in.getChannel();
+            List<Record> records;
+            try {
+                records = readCentralDirectory(channel, assetFd.getStartOffset(), assetFd.getLength());
+            } catch (ZipException e) {
+                return null;
+            }
+            List<Pair<String, String>> symlinks = new ArrayList<>();
+            for (Record record : records) {
+                if (record.mName.equals(SYMLINKS_ENTRY)) {
+                    parseSymlinks(new ByteArrayInputStream(readEntry(channel, assetFd.getStartOffset(), record)), symlinks);
+                } else if (!record.isDirectory()) {
+                    addToManifest(record);
+                }
+            }
+            for (Pair<String, String> symlink : symlinks) addSymlinkToManifest(symlink);
+            mManifest.computeBootstrapId();
+            return mManifest;
+        } finally {
+            assetFd.close();
+        }
+    }
+
+    /** What has been extracted, or would be extracted, without modification times. */
+    BootstrapManifest getManifest() {
+        return mManifest;
+    }
+
+    /** Add an entry unless already added by {@link #readManifest}, keeping any modification time set by the caller. */
+    private void addToManifest(Record record) {
+        if (mManifest.get(record.mName) != null) return;
+        mManifest.add(new BootstrapManifest.Entry(record.mName, record.mCrc, record.mSize, isExecutable(record.mName), null));
+    }
+
+    private void addSymlinkToManifest(Pair<String, String> symlink) {
+        if (mManifest.get(symlink.second) != null) return;
+        mManifest.add(new BootstrapManifest.Entry(symlink.second, 0, 0, false, symlink.first));
+    }
+
+    private void addToManifest(BootstrapImage.Entry entry) {
+        if (entry.mType == BootstrapImage.TYPE_DIRECTORY || mManifest.get(entry.mPath) != null) return;
+        mManifest.add(new BootstrapManifest.Entry(entry.mPath, entry.mCrc, entry.mSize, (entry.mMode & 0100) != 0, entry.mSymlinkTarget));
+    }
+
+    /** Open an asset stored uncompressed in the apk, or return null if there is no such asset. */
+    private static AssetFileDescriptor openAssetFd(AssetManager assets, String name) throws IOException {
+        try {
+            return assets.openFd(name);
+        } catch (FileNotFoundException e) {
+            // Also thrown if the asset has been compressed in the apk.
+            return null;
+        }
+    }
+
+    /** Extract the bootstrap zip into the target folder, which should not exist. */
+    void extract(AssetManager assets) throws IOException {
+        extract(assets, null);
+    }
+
+    /**
+     * Extract the bootstrap zip into the target folder.
+     *
+     * @param onlyPaths the paths of the files and symlinks to extract, or null for all. If not null, the target folder
+     *                  may exist but must not contain the files and symlinks to extract.
+     */
+    void extract(AssetManager assets, Set<String> onlyPaths) throws IOException {
+        AssetFileDescriptor imageFd = openAssetFd(assets, BootstrapImage.BOOTSTRAP_IMAGE_ASSET);
+        if (imageFd != null) {
+            try (FileInputStream in = new FileInputStream(imageFd.getFileDescriptor())) {
+                final long startNanos = System.nanoTime();
+                BootstrapImage image = BootstrapImage.read(in.getChannel(), imageFd.getStartOffset(), imageFd.getLength());
+                extractImage(in.getChannel(), image, onlyPaths, System.nanoTime() - startNanos);
+            } finally {
+                imageFd.close();
+            }
+            return;
+        }
+
+        AssetFileDescriptor assetFd;
+        try {
+            assetFd = assets.openFd(BOOTSTRAP_ASSET);
+        } catch (FileNotFoundException e) {
+            // Thrown if the asset has been compressed in the apk, so it has to be streamed through the decompressor:
+            if (onlyPaths != null) throw new IOException("Bootstrap zip is compressed, unable to extract only some entries");
+            Log.w(LOG_TAG, "Bootstrap zip is compressed, extracting it as a stream");
+            try (InputStream in = assets.open(BOOTSTRAP_ASSET)) {
+                extractStream(in);
+            }
+            return;
+        }
+
+        try (FileInputStream in = new FileInputStream(assetFd.getFileDescriptor())) {
+            final FileChannel channel = in.getChannel();
+            final long startNanos = System.nanoTime();
+            List<Record> records;
+            try {
+                records = readCentralDirectory(channel, assetFd.getStartOffset(), assetFd.getLength());
+            } catch (ZipException e) {
+                if (onlyPaths != null) throw e;
+                Log.w(LOG_TAG, "Unable to read central directory, extracting bootstrap zip as a stream", e);
+                try (InputStream stream = assets.open(BOOTSTRAP_ASSET)) {
+                    extractStream(stream);
+                }
+                return;
+            }
+            extractRecords(channel, assetFd.getStartOffset(), records, onlyPaths, System.nanoTime() - startNanos);
+        } finally {
+            assetFd.close();
+        }
+    }
+
+    /** Read the entries listed in the central directory of a zip stored at the given range of a file. */
+    static List<Record> readCentralDirectory(FileChannel channel, long start, long length) throws IOException {
+        // The end of central directory record is last in the file, followed only by a comment of at most 64 KiB:
+        final int tailLength = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, start + length - tailLength);
+        int endOffset = -1;
+        for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset == -1) throw new ZipException("No end of central directory record");
+
+        final int entryCount = tail.getShort(endOffset + 10) & 0xFFFF;
+        final long directorySize = tail.getInt(endOffset + 12) & 0xFFFFFFFFL;
+        final long directoryOffset = tail.getInt(endOffset + 16) & 0xFFFFFFFFL;
+        if (directoryOffset + directorySize > length) throw new ZipException("Central directory out of range (zip64?)");
+
+        ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, directory, start + directoryOffset);
+
+        List<Record> records = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new ZipException("Malformed central directory entry " + i);
+            final int method = directory.getShort(position + 10) & 0xFFFF;
+            final long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            final long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            final long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            final int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            final int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            final int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            final long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL)
+                throw new ZipException("Zip64 entries are not supported");
+            final String name = new String(directory.array(), position + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+            records.add(new Record(name, method, crc, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return records;
+    }
+
+    private void extractRecords(final FileChannel channel, final long start, List<Record> records, Set<String> onlyPaths,
+                                long centralDirectoryNanos) throws IOException {
+        long phaseStartNanos = System.nanoTime();
+
+        // Read the symlinks to create and collect all directories needed by files and symlinks:
+        final List<Pair<String, String>> allSymlinks = new ArrayList<>();
+        final List<Pair<String, String>> symlinks = new ArrayList<>();
+        final List<Record> files = new ArrayList<>(records.size());
+        final TreeSet<String> directories = new TreeSet<>();
+        for (Record record : records) {
+            if (record.mName.equals(SYMLINKS_ENTRY)) {
+                ByteArrayInputStream symlinksData = new ByteArrayInputStream(readEntry(channel, start, record));
+                parseSymlinks(symlinksData, allSymlinks);
+            } else if (record.isDirectory()) {
+                if (onlyPaths == null) directories.add(record.mName.substring(0, record.mName.length() - 1));
+            } else {
+                addToManifest(record);
+                if (onlyPaths != null && !onlyPaths.contains(record.mName)) continue;
+                files.add(record);
+                mBytesTotal += record.mSize;
+                addParentDirectories(record.mName, directories);
+            }
+        }
+        if (allSymlinks.isEmpty()) throw new RuntimeException("No SYMLINKS.txt encountered");
+        for (Pair<String, String> symlink : allSymlinks) {
+            addSymlinkToManifest(symlink);
+            if (onlyPaths != null && !onlyPaths.contains(symlink.second)) continue;
+            symlinks.add(symlink);
+            addParentDirectories(symlink.second, directories);
+        }
+        mManifest.computeBootstrapId();
+
+        // The sorted set has every directory after its parent, so they can be created with plain mkdir() in order:
+        if (!mTargetDir.mkdirs() && !mTargetDir.isDirectory())
+            throw new IOException("Failed to create directory: " + mTargetDir.getAbsolutePath());
+        for (String directory : directories) {
+            File dir = new File(mTargetDir, directory);
+            if (!dir.mkdir() && !dir.isDirectory())
+                throw new IOException("Failed to create directory: " + dir.getAbsolutePath());
+        }
+        final long directoriesNanos = System.nanoTime() - phaseStartNanos;
+
+        // Hand out the largest files first, so that no thread is left with a big file at the end:
+        Collections.sort(files, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return Long.compare(b.mSize, a.mSize);
+            }
+        });
+
+        phaseStartNanos = System.nanoTime();
+        final int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), files.size()));
+        final AtomicInteger nextFile = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<Void>> workers = new ArrayList<>(threadCount);
+        long symlinksNanos;
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final byte[] input = new byte[BUFFER_SIZE];
+                        final byte[] output = new byte[BUFFER_SIZE];
+                        final Inflater inflater = new Inflater(true);
+                        final CRC32 crc = new CRC32();
+                        try {
+                            int index;
+                            while (!mFailed.get() && (index = nextFile.getAndIncrement()) < files.size()) {
+                                extractFile(channel, start, files.get(index), input, output, inflater, crc);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            mFailed.set(true);
+                            throw e;
+                        } finally {
+                            inflater.end();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // Create the symlinks on this thread while the files are extracted:
+            final long symlinksStartNanos = System.nanoTime();
+            for (Pair<String, String> symlink : symlinks) {
+                try {
+                    Os.symlink(symlink.first, new File(mTargetDir, symlink.second).getAbsolutePath());
+                } catch (ErrnoException e) {
+                    mFailed.set(true);
+                    throw new IOException("Failed to create symlink " + symlink.second + " -> " + symlink.first, e);
+                }
+            }
+            symlinksNanos = System.nanoTime() - symlinksStartNanos;
+
+            // Wait for all threads, so that all corrupt entries found before stopping are reported:
+            Throwable failure = null;
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while extracting", e);
+                }
+            }
+            if (!mCorruptEntries.isEmpty()) throw new BootstrapIntegrityException(new ArrayList<>(mCorruptEntries));
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure != null) throw new RuntimeException(failure);
+        } finally {
+            executor.shutdownNow();
+        }
+        final long filesNanos = System.nanoTime() - phaseStartNanos;
+
+        Log.i(LOG_TAG, "Extracted " + files.size() + " files (" + mBytesTotal + " bytes), " + directories.size()
+            + " directories and " + symlinks.size() + " symlinks with " + threadCount + " threads: central directory "
+            + centralDirectoryNanos / 1000000 + " ms, directories " + directoriesNanos / 1000000 + " ms, files and symlinks "
+            + filesNanos / 1000000 + " ms (of which symlinks " + symlinksNanos / 1000000 + " ms), "
+            + mBytesTotal * 1000 / Math.max(1, filesNanos) + " MB/s verified");
+    }
+
+    /** Record an entry as corrupt and stop the extraction. Returns the exception for the caller to throw. */
+    private BootstrapIntegrityException onCorruptEntry(String name, String reason) {
+        Log.e(LOG_TAG, "Corrupt bootstrap entry " + name + ": " + reason);
+        mCorruptEntries.add(name);
+        mFailed.set(true);
+        return new BootstrapIntegrityException(Collections.singletonList(name));
+    }
+
+    /** Install a bootstrap image, reading its data from start to end in large chunks on this thread. */
+    private void extractImage(FileChannel channel, BootstrapImage image, Set<String> onlyPaths, long tableNanos) throws IOException {
+        long phaseStartNanos = System.nanoTime();
+        final List<BootstrapImage.Entry> files = new ArrayList<>();
+        final List<BootstrapImage.Entry> symlinks = new ArrayList<>();
+        final List<BootstrapImage.Entry> tableDirectories = new ArrayList<>();
+        final TreeSet<String> directories = new TreeSet<>();
+        for (BootstrapImage.Entry entry : image.mEntries) {
+            addToManifest(entry);
+            if (entry.mType == BootstrapImage.TYPE_DIRECTORY) {
+                if (onlyPaths != null) continue;
+                tableDirectories.add(entry);
+                directories.add(entry.mPath);
+            } else {
+                if (onlyPaths != null && !onlyPaths.contains(entry.mPath)) continue;
+                if (entry.mType == BootstrapImage.TYPE_FILE) {
+                    files.add(entry);
+                    mBytesTotal += entry.mSize;
+                } else {
+                    symlinks.add(entry);
+                }
+                addParentDirectories(entry.mPath, directories);
+            }
+        }
+        mManifest.computeBootstrapId();
+
+        try {
+            if (!mTargetDir.mkdirs() && !mTargetDir.isDirectory())
+                throw new IOException("Failed to create directory: " + mTargetDir.getAbsolutePath());
+            for (String directory : directories) {
+                File dir = new File(mTargetDir, directory);
+                if (!dir.mkdir() && !dir.isDirectory())
+                    throw new IOException("Failed to create directory: " + dir.getAbsolutePath());
+            }
+            for (BootstrapImage.Entry entry : tableDirectories) {
+                if (entry.mMode != 0) Os.chmod(new File(mTargetDir, entry.mPath).getAbsolutePath(), entry.mMode & 07777);
+            }
+            final long directoriesNanos = System.nanoTime() - phaseStartNanos;
+
+            phaseStartNanos = System.nanoTime();
+            for (BootstrapImage.Entry entry : symlinks)
+                Os.symlink(entry.mSymlinkTarget, new File(mTargetDir, entry.mPath).getAbsolutePath());
+            final long symlinksNanos = System.nanoTime() - phaseStartNanos;
+
+            phaseStartNanos = System.nanoTime();
+            final byte[] window = new byte[IMAGE_WINDOW_SIZE];
+            long windowStart = 0;
+            int windowLength = 0;
+            final CRC32 crc = new CRC32();
+            for (BootstrapImage.Entry entry : files) {
+                final File targetFile = new File(mTargetDir, entry.mPath);
+                crc.reset();
+                long written = 0;
+                try (FileOutputStream out = new FileOutputStream(targetFile)) {
+                    while (written < entry.mSize) {
+                        final long position = entry.mOffset + written;
+                        if (position < windowStart || position >= windowStart + windowLength) {
+                            // Files are stored in table order, so the next window continues where the last one ended:
+                            windowStart = position;
+                            windowLength = (int) Math.min(window.length, image.mDataLength - position);
+                            try {
+                                readFully(channel, ByteBuffer.wrap(window, 0, windowLength), image.mDataPosition + position);
+                            } catch (EOFException e) {
+                                throw onCorruptEntry(entry.mPath, "truncated");
+                            }
+                        }
+                        final int offsetInWindow = (int) (position - windowStart);
+                        final int count = (int) Math.min(entry.mSize - written, windowLength - offsetInWindow);
+                        crc.update(window, offsetInWindow, count);
+                        out.write(window, offsetInWindow, count);
+                        written += count;
+                        onBytesExtracted(count);
+                    }
+                }
+                if (crc.getValue() != entry.mCrc) throw onCorruptEntry(entry.mPath, "checksum mismatch");
+                if ((entry.mMode & 0111) != 0) Os.chmod(targetFile.getAbsolutePath(), entry.mMode & 07777);
+            }
+            final long filesNanos = System.nanoTime() - phaseStartNanos;
+
+            Log.i(LOG_TAG, "Installed image with " + files.size() + " files (" + mBytesTotal + " bytes), " + directories.size()
+                + " directories and " + symlinks.size() + " symlinks: table " + tableNanos / 1000000 + " ms, directories "
+                + directoriesNanos / 1000000 + " ms, symlinks " + symlinksNanos / 1000000 + " ms, files " + filesNanos / 1000000
+                + " ms, " + mBytesTotal * 1000 / Math.max(1, filesNanos) + " MB/s verified");
+        } catch (ErrnoException e) {
+            throw new IOException("Failed installing bootstrap image", e);
+        }
+    }
+
+    /** Extract a file entry into the target folder, whose parent directory must exist, and verify its checksum. */
+    private void extractFile(FileChannel channel, long start, Record record, byte[] input, byte[] output, Inflater inflater,
+                             CRC32 crc) throws IOException {
+        final long dataPosition = getDataPosition(channel, start, record);
+        final File targetFile = new File(mTargetDir, record.mName);
+        crc.reset();
+        long written = 0;
+        try (FileOutputStream out = new FileOutputStream(targetFile)) {
+            if (record.mMethod == ZipEntry.STORED) {
+                // Not copied with transferTo() since the data needs to pass through the checksum:
+                long position = dataPosition;
+                while (written < record.mSize) {
+                    final int count = (int) Math.min(output.length, record.mSize - written);
+                    try {
+                        readFully(channel, ByteBuffer.wrap(output, 0, count), position);
+                    } catch (EOFException e) {
+                        throw onCorruptEntry(record.mName, "truncated");
+                    }
+                    crc.update(output, 0, count);
+                    out.write(output, 0, count);
+                    position += count;
+                    written += count;
+                    onBytesExtracted(count);
+                }
+            } else if (record.mMethod == ZipEntry.DEFLATED) {
+                inflater.reset();
+                long position = dataPosition;
+                long compressedRemaining = record.mCompressedSize;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (compressedRemaining == 0) throw onCorruptEntry(record.mName, "truncated");
+                        final int count = (int) Math.min(input.length, compressedRemaining);
+                        try {
+                            readFully(channel, ByteBuffer.wrap(input, 0, count), position);
+                        } catch (EOFException e) {
+                            throw onCorruptEntry(record.mName, "truncated");
+                        }
+                        position += count;
+                        compressedRemaining -= count;
+                        inflater.setInput(input, 0, count);
+                    }
+                    final int inflated;
+                    try {
+                        inflated = inflater.inflate(output);
+                    } catch (DataFormatException e) {
+                        throw onCorruptEntry(record.mName, e.getMessage());
+                    }
+                    if (inflated > 0) {
+                        crc.update(output, 0, inflated);
+                        out.write(output, 0, inflated);
+                        written += inflated;
+                        onBytesExtracted(inflated);
+                    } else if (!inflater.needsInput() && !inflater.finished()) {
+                        throw onCorruptEntry(record.mName, "invalid deflate stream");
+                    }
+                }
+            } else {
+                throw new ZipException("Unsupported compression method " + record.mMethod + ": " + record.mName);
+            }
+        }
+        if (written != record.mSize) throw onCorruptEntry(record.mName, "size " + written + " instead of " + record.mSize);
+        if (crc.getValue() != record.mCrc) throw onCorruptEntry(record.mName, "checksum mismatch");
+
+        if (isExecutable(record.mName)) {
+            try {
+                //noinspection OctalInteger
+                Os.chmod(targetFile.getAbsolutePath(), 0700);
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to make executable: " + targetFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /** Read all of a (small) entry into memory. */
+    private static byte[] readEntry(FileChannel channel, long start, Record record) throws IOException {
+        final long dataPosition = getDataPosition(channel, start, record);
+        byte[] compressed = new byte[(int) record.mCompressedSize];
+        readFully(channel, ByteBuffer.wrap(compressed), dataPosition);
+        if (record.mMethod == ZipEntry.STORED) {
+            verifyChecksum(record, compressed);
+            return compressed;
+        }
+
+        byte[] result = new byte[(int) record.mSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int position = 0;
+            while (position < result.length && !inflater.finished()) {
+                int inflated = inflater.inflate(result, position, result.length - position);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new BootstrapIntegrityException(Collections.singletonList(record.mName));
+                position += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new BootstrapIntegrityException(Collections.singletonList(record.mName));
+        } finally {
+            inflater.end();
+        }
+        verifyChecksum(record, result);
+        return result;
+    }
+
+    private static void verifyChecksum(Record record, byte[] data) throws BootstrapIntegrityException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (data.length != record.mSize || crc.getValue() != record.mCrc)
+            throw new BootstrapIntegrityException(Collections.singletonList(record.mName));
+    }
+
+    /** The position of the data of an entry, which follows its local header. */
+    private static long getDataPosition(FileChannel channel, long start, Record record) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, start + record.mLocalHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) throw new ZipException("Malformed local header: " + record.mName);
+        final int nameLength = header.getShort(26) & 0xFFFF;
+        final int extraLength = header.getShort(28) & 0xFFFF;
+        return start + record.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) throw new EOFException("Unexpected end of bootstrap zip");
+            position += count;
+        }
+    }
+
+    private static void addParentDirectories(String path, TreeSet<String> directories) {
+        int slash = path.lastIndexOf('/');
+        while (slash > 0 && directories.add(path.substring(0, slash))) slash = path.lastIndexOf('/', slash - 1);
+    }
+
+    /** Parse SYMLINKS.txt, with "target←path" lines where the path is relative to $PREFIX. */
+    private static void parseSymlinks(InputStream in, List<Pair<String, String>> symlinks) throws IOException {
+        BufferedReader symlinksReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = symlinksReader.readLine()) != null) {
+            String[] parts = line.split("←");
+            if (parts.length != 2) throw new RuntimeException("Malformed symlink line: " + line);
+            symlinks.add(Pair.create(parts[0], parts[1]));
+        }
+    }
+
+    private void onBytesExtracted(long count) {
+        final int percent = (int) (mBytesExtracted.addAndGet(count) * 100 / Math.max(1, mBytesTotal));
+        final int lastPercent = mLastPercent.get();
+        if (percent > lastPercent && mLastPercent.compareAndSet(lastPercent, percent)) mListener.onProgress(percent);
+    }
+
+    /** Extract the zip as a stream on this thread, for when it can not be read through a file descriptor. */
+    private void extractStream(InputStream in) throws IOException {
+        final long startNanos = System.nanoTime();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final List<Pair<String, String>> symlinks = new ArrayList<>(50);
+        int fileCount = 0;
+        ZipInputStream zipInput = new ZipInputStream(in);
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInput.getNextEntry()) != null) {
+            final String zipEntryName = zipEntry.getName();
+            if (zipEntryName.equals(SYMLINKS_ENTRY)) {
+                parseSymlinks(zipInput, symlinks);
+            } else {
+                File targetFile = new File(mTargetDir, zipEntryName);
+                if (zipEntry.isDirectory()) {
+                    if (!targetFile.mkdirs() && !targetFile.isDirectory())
+                        throw new IOException("Failed to create directory: " + targetFile.getAbsolutePath());
+                } else {
+                    File parent = targetFile.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs())
+                        throw new IOException("Failed to create directory: " + parent.getAbsolutePath());
+                    try (FileOutputStream outStream = new FileOutputStream(targetFile)) {
+                        int readBytes;
+                        while ((readBytes = zipInput.read(buffer)) != -1)
+                            outStream.write(buffer, 0, readBytes);
+                    } catch (ZipException | EOFException e) {
+                        // ZipInputStream verifies the CRC32 and size of each entry at its end:
+                        Log.e(LOG_TAG, "Corrupt bootstrap entry " + zipEntryName + ": " + e.getMessage());
+                        throw new BootstrapIntegrityException(Collections.singletonList(zipEntryName));
+                    }
+                    fileCount++;
+                    mManifest.add(new BootstrapManifest.Entry(zipEntryName, zipEntry.getCrc(), zipEntry.getSize(), isExecutable(zipEntryName), null));
+                    if (isExecutable(zipEntryName)) {
+                        try {
+                            //noinspection OctalInteger
+                            Os.chmod(targetFile.getAbsolutePath(), 0700);
+                        } catch (ErrnoException e) {
+                            throw new IOException("Failed to make executable: " + targetFile.getAbsolutePath(), e);
+                        }
+                    }
+                }
+            }
+        }
+        final long filesNanos = System.nanoTime() - startNanos;
+
+        if (symlinks.isEmpty()) throw new RuntimeException("No SYMLINKS.txt encountered");
+        for (Pair<String, String> symlink : symlinks) addSymlinkToManifest(symlink);
+        mManifest.computeBootstrapId();
+        final long symlinksStartNanos = System.nanoTime();
+        for (Pair<String, String> symlink : symlinks) {
+            try {
+                Os.symlink(symlink.first, new File(mTargetDir, symlink.second).getAbsolutePath());
+            } catch (ErrnoException e) {
+                throw new IOException("Failed to create symlink " + symlink.second + " -> " + symlink.first, e);
+            }
+        }
+        Log.i(LOG_TAG, "Extracted " + fileCount + " files and " + symlinks.size() + " symlinks as a stream: files "
+            + filesNanos / 1000000 + " ms, symlinks " + (System.nanoTime() - symlinksStartNanos) / 1000000 + " ms");
+    }
+
+}
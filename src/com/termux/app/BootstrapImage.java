@@ -0,0 +1,125 @@
+package com.termux.app;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The table of a bootstrap image, an alternative to the bootstrap zip made from it by scripts/bootstrap-image.py.
+ * <p/>
+ * The image is a header, a table of all directories, files and symlinks with their modes, followed by the uncompressed
+ * contents of all files back to back in table order. Installing it is a single sequential read of the data, split into
+ * files as described by the table, instead of decompressing and seeking between thousands of zip entries. All numbers
+ * are big-endian:
+ * <pre>
+ * header: "TRMXBOOT", u32 version (1), u32 entry count, u64 offset of the data from the start of the image
+ * entry:  u8 type, u16 mode, u16 path length, path (UTF-8, relative to $PREFIX), then depending on the type:
+ *         directory: nothing
+ *         file:      u64 offset of the contents from the start of the data, u64 size, u32 CRC32 of the contents
+ *         symlink:   u16 target length, target (UTF-8)
+ * </pre>
+ */
+final class BootstrapImage {
+
+    static final String BOOTSTRAP_IMAGE_ASSET = "bootstrap.img";
+
+    static final int TYPE_DIRECTORY = 0;
+    static final int TYPE_FILE = 1;
+    static final int TYPE_SYMLINK = 2;
+
+    private static final byte[] MAGIC = "TRMXBOOT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    static final class Entry {
+        final int mType;
+        final int mMode;
+        final String mPath;
+        final long mOffset;
+        final long mSize;
+        final long mCrc;
+        final String mSymlinkTarget;
+
+        Entry(int type, int mode, String path, long offset, long size, long crc, String symlinkTarget) {
+            mType = type;
+            mMode = mode;
+            mPath = path;
+            mOffset = offset;
+            mSize = size;
+            mCrc = crc;
+            mSymlinkTarget = symlinkTarget;
+        }
+    }
+
+    final List<Entry> mEntries;
+    /** The position of the file contents in the channel the image was read from. */
+    final long mDataPosition;
+    final long mDataLength;
+
+    private BootstrapImage(List<Entry> entries, long dataPosition, long dataLength) {
+        mEntries = entries;
+        mDataPosition = dataPosition;
+        mDataLength = dataLength;
+    }
+
+    /** Read the table of an image stored at the given range of a file. */
+    static BootstrapImage read(FileChannel channel, long start, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        BootstrapExtractor.readFully(channel, header, start);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a bootstrap image");
+        final int version = header.getInt();
+        if (version != VERSION) throw new IOException("Unsupported bootstrap image version " + version);
+        final int entryCount = header.getInt();
+        final long dataOffset = header.getLong();
+        if (dataOffset < HEADER_SIZE || dataOffset > length) throw new IOException("Malformed bootstrap image header");
+
+        ByteBuffer table = ByteBuffer.allocate((int) (dataOffset - HEADER_SIZE));
+        BootstrapExtractor.readFully(channel, table, start + HEADER_SIZE);
+        table.flip();
+        final long dataLength = length - dataOffset;
+        List<Entry> entries = new ArrayList<>(entryCount);
+        try {
+            for (int i = 0; i < entryCount; i++) {
+                final int type = table.get() & 0xFF;
+                final int mode = table.getShort() & 0xFFFF;
+                final String path = readString(table);
+                switch (type) {
+                    case TYPE_DIRECTORY:
+                        entries.add(new Entry(type, mode, path, 0, 0, 0, null));
+                        break;
+                    case TYPE_FILE:
+                        final long offset = table.getLong();
+                        final long size = table.getLong();
+                        final long crc = table.getInt() & 0xFFFFFFFFL;
+                        if (offset < 0 || size < 0 || offset + size > dataLength)
+                            throw new IOException("File out of range in bootstrap image: " + path);
+                        entries.add(new Entry(type, mode, path, offset, size, crc, null));
+                        break;
+                    case TYPE_SYMLINK:
+                        entries.add(new Entry(type, mode, path, 0, 0, 0, readString(table)));
+                        break;
+                    default:
+                        throw new IOException("Unknown entry type " + type + " in bootstrap image: " + path);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated bootstrap image table");
+        }
+        return new BootstrapImage(entries, start + dataOffset, dataLength);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
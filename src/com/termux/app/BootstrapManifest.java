@@ -0,0 +1,150 @@
+package com.termux.app;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The files and symlinks installed from a bootstrap zip, recorded at install time so that a later bootstrap can be
+ * installed by only extracting what has changed, see {@link TermuxInstaller}.
+ * <p/>
+ * Files are identified by the CRC32 and size of their content as listed in the zip, and the modification time of each
+ * installed file is recorded to tell whether the user has changed it since.
+ */
+final class BootstrapManifest {
+
+    /** A file or symlink, with a path relative to $PREFIX. */
+    static final class Entry {
+        final String mPath;
+        final long mCrc;
+        final long mSize;
+        final boolean mExecutable;
+        /** The target if a symlink, or null if a file. */
+        final String mSymlinkTarget;
+        /** The modification time in seconds of the installed file, or 0 if not known. */
+        long mModificationTime;
+
+        Entry(String path, long crc, long size, boolean executable, String symlinkTarget) {
+            mPath = path;
+            mCrc = crc;
+            mSize = size;
+            mExecutable = executable;
+            mSymlinkTarget = symlinkTarget;
+        }
+
+        /** If this entry has the same content as another, so that one need not be replaced by the other. */
+        boolean hasSameContent(Entry other) {
+            if (mSymlinkTarget != null) return mSymlinkTarget.equals(other.mSymlinkTarget);
+            return other.mSymlinkTarget == null && mCrc == other.mCrc && mSize == other.mSize && mExecutable == other.mExecutable;
+        }
+
+        /** If the installed file is still as installed from this entry, and so not changed by the user. */
+        boolean isInstalledAt(File file) {
+            try {
+                StructStat stat = Os.lstat(file.getAbsolutePath());
+                if (mSymlinkTarget != null) {
+                    return OsConstants.S_ISLNK(stat.st_mode) && mSymlinkTarget.equals(Os.readlink(file.getAbsolutePath()));
+                }
+                return OsConstants.S_ISREG(stat.st_mode) && stat.st_size == mSize && stat.st_mtime == mModificationTime;
+            } catch (ErrnoException e) {
+                return false;
+            }
+        }
+    }
+
+    /** Identifies the bootstrap the entries came from, computed from all entries. */
+    String mBootstrapId;
+    final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    void add(Entry entry) {
+        mEntries.put(entry.mPath, entry);
+    }
+
+    Entry get(String path) {
+        return mEntries.get(path);
+    }
+
+    /** Compute {@link #mBootstrapId} from the entries, which must all have been added. */
+    void computeBootstrapId() {
+        CRC32 crc = new CRC32();
+        for (Entry entry : mEntries.values()) {
+            crc.update((entry.mPath + '\0' + entry.mCrc + '\0' + entry.mSize + '\0' + entry.mExecutable + '\0'
+                + entry.mSymlinkTarget + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+        mBootstrapId = mEntries.size() + "-" + Long.toHexString(crc.getValue());
+    }
+
+    /** Record the modification times of the given installed files, or of all files if paths is null. */
+    void recordModificationTimes(File prefixDir, Collection<String> paths) throws IOException {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mSymlinkTarget != null || (paths != null && !paths.contains(entry.mPath))) continue;
+            try {
+                entry.mModificationTime = Os.lstat(new File(prefixDir, entry.mPath).getAbsolutePath()).st_mtime;
+            } catch (ErrnoException e) {
+                throw new IOException("Unable to stat installed file: " + entry.mPath, e);
+            }
+        }
+    }
+
+    /** Read a manifest written by {@link #write(File)}, or return null if there is none. */
+    static BootstrapManifest read(File file) throws IOException {
+        if (!file.isFile()) return null;
+        BootstrapManifest manifest = new BootstrapManifest();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            manifest.mBootstrapId = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                try {
+                    if (parts.length == 3 && parts[0].equals("L")) {
+                        manifest.add(new Entry(parts[1], 0, 0, false, parts[2]));
+                    } else if (parts.length == 6 && parts[0].equals("F")) {
+                        Entry entry = new Entry(parts[1], Long.parseLong(parts[2], 16), Long.parseLong(parts[3]), parts[4].equals("x"), null);
+                        entry.mModificationTime = Long.parseLong(parts[5]);
+                        manifest.add(entry);
+                    } else {
+                        throw new IOException("Malformed manifest line: " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed manifest line: " + line, e);
+                }
+            }
+        }
+        if (manifest.mBootstrapId == null) throw new IOException("Empty manifest");
+        return manifest;
+    }
+
+    /** Write this manifest, replacing the file atomically. */
+    void write(File file) throws IOException {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            writer.write(mBootstrapId);
+            writer.write('\n');
+            for (Entry entry : mEntries.values()) {
+                if (entry.mSymlinkTarget != null) {
+                    writer.write("L\t" + entry.mPath + "\t" + entry.mSymlinkTarget + "\n");
+                } else {
+                    writer.write("F\t" + entry.mPath + "\t" + Long.toHexString(entry.mCrc) + "\t" + entry.mSize + "\t"
+                        + (entry.mExecutable ? "x" : "-") + "\t" + entry.mModificationTime + "\n");
+                }
+            }
+        }
+        if (!tmpFile.renameTo(file)) throw new IOException("Unable to rename " + tmpFile.getAbsolutePath());
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.termux.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * A user configuration file, such as termux.properties or the font, which is checked for changes when the user asks for
+ * a reload so that only what has actually changed needs to be applied.
+ * <p/>
+ * The file is only read if its modification time or size has changed since last checked, and only counts as changed if
+ * its content has, so that e.g. saving a file without changes or touching it does not rebuild the font. Properties files
+ * are parsed when read and the result kept until the next change.
+ */
+final class ConfigFile {
+
+    /** The files to use, in order of preference: the first existing one is used. */
+    private final File[] mCandidates;
+    private final boolean mParseProperties;
+
+    private boolean mChecked;
+    private File mFile;
+    private long mLastModified;
+    private long mLength;
+    /** The CRC32 of the content, or -1 if there is no file. */
+    private long mContentHash = -1;
+    private Properties mProperties = new Properties();
+
+    ConfigFile(boolean parseProperties, File... candidates) {
+        mParseProperties = parseProperties;
+        mCandidates = candidates;
+    }
+
+    /**
+     * Check if the file has been created, changed or removed since the last call, always true on the first call.
+     *
+     * @throws IOException if unable to read the file, in which case it is considered unchanged until modified again.
+     */
+    synchronized boolean checkForChange() throws IOException {
+        File file = null;
+        for (File candidate : mCandidates) {
+            if (candidate.exists()) {
+                file = candidate;
+                break;
+            }
+        }
+
+        final boolean firstCheck = !mChecked;
+        mChecked = true;
+        if (file == null || !file.isFile() || !file.canRead()) {
+            final boolean changed = firstCheck || mContentHash != -1;
+            mFile = null;
+            mContentHash = -1;
+            mProperties = new Properties();
+            return changed;
+        }
+
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        if (!firstCheck && file.equals(mFile) && lastModified == mLastModified && length == mLength) return false;
+        mFile = file;
+        mLastModified = lastModified;
+        mLength = length;
+
+        final byte[] content = readFully(file);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        if (!firstCheck && crc.getValue() == mContentHash) return false;
+        mContentHash = crc.getValue();
+        if (mParseProperties) {
+            Properties properties = new Properties();
+            properties.load(new ByteArrayInputStream(content));
+            mProperties = properties;
+        }
+        return true;
+    }
+
+    /** The file as of the last check, or null if there was none. */
+    synchronized File getFile() {
+        return mFile;
+    }
+
+    /** The properties read at the last check, empty if there was no file. */
+    synchronized Properties getProperties() {
+        return mProperties;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, Math.min(file.length(), Integer.MAX_VALUE)));
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -10,12 +10,15 @@ public class EmulatorBean {
     public TerminalSession session;
     public View title;
     public View close;
+    /** Shows the resource usage of the session, if enabled in termux.properties. */
+    public View stats;
 
     public EmulatorBean(View view, TerminalSession session) {
         this.view = view;
         this.session = session;
         title = view.findViewById(R.id.title);
         close = view.findViewById(R.id.close);
+        stats = view.findViewById(R.id.stats);
     }
 
 }
@@ -0,0 +1,203 @@
+package com.termux.app;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes, or measures the size of, a folder tree with the folders handled in parallel on a shared work-stealing
+ * {@link ForkJoinPool}, for removing a $PREFIX or a folder from the documents provider and for showing storage use.
+ * <p/>
+ * Symlinks are never followed: a symlink is deleted or counted as itself, so that e.g. deleting $HOME/storage does not
+ * delete the shared storage it links to. A file with several hard links in the tree, as left by updating the bootstrap,
+ * is only counted once.
+ * <p/>
+ * A walker is used for one operation at a time and may be cancelled from any thread, in which case the operation stops
+ * as soon as possible with an {@link InterruptedIOException}, leaving a partially deleted tree when deleting.
+ */
+public final class FileTreeWalker {
+
+    /** Called on a worker thread at most every {@link #PROGRESS_INTERVAL_MILLIS} while walking. */
+    public interface ProgressListener {
+        void onProgress(long files, long bytes);
+    }
+
+    /** What a walk has found, or deleted. Symlinks and other non-folders count as files. */
+    public static final class Totals {
+        public final long mFiles;
+        public final long mDirectories;
+        public final long mBytes;
+
+        Totals(long files, long directories, long bytes) {
+            mFiles = files;
+            mDirectories = directories;
+            mBytes = bytes;
+        }
+    }
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final ProgressListener mListener;
+    private volatile boolean mCancelled;
+    private boolean mDelete;
+
+    private final AtomicLong mFiles = new AtomicLong();
+    private final AtomicLong mDirectories = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mLastProgressMillis = new AtomicLong();
+    /** The first error, which stops the walk. */
+    private final AtomicReference<IOException> mError = new AtomicReference<>();
+    /** The device and inode of files with more than one hard link which have been counted. */
+    private final Set<String> mCountedLinks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public FileTreeWalker(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /** Stop the current operation as soon as possible. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /** Delete a file, symlink or folder tree. Deleting something which does not exist does nothing. */
+    public Totals delete(File root) throws IOException {
+        mDelete = true;
+        return walk(root);
+    }
+
+    /** Count the files and folders of a tree and the total size of the files. */
+    public Totals measure(File root) throws IOException {
+        mDelete = false;
+        return walk(root);
+    }
+
+    private Totals walk(File root) throws IOException {
+        mFiles.set(0);
+        mDirectories.set(0);
+        mBytes.set(0);
+        mCountedLinks.clear();
+        mError.set(null);
+
+        final String path = root.getAbsolutePath();
+        StructStat stat = lstat(path);
+        if (stat == null) {
+            if (mError.get() != null) throw mError.get();
+            return new Totals(0, 0, 0);
+        }
+        if (OsConstants.S_ISDIR(stat.st_mode)) {
+            sPool.invoke(new DirectoryTask(path));
+        } else {
+            visitFile(path, stat);
+        }
+
+        if (mError.get() != null) throw mError.get();
+        if (mCancelled) throw new InterruptedIOException("Cancelled walking " + path);
+        return new Totals(mFiles.get(), mDirectories.get(), mBytes.get());
+    }
+
+    /** Handles the files of a folder itself, and forks a task for each sub folder. */
+    private final class DirectoryTask extends RecursiveTask<Void> {
+        private final String mPath;
+
+        DirectoryTask(String path) {
+            mPath = path;
+        }
+
+        @Override
+        protected Void compute() {
+            if (isStopped()) return null;
+            String[] names = new File(mPath).list();
+            if (names == null) {
+                fail(new IOException("Unable to list " + mPath));
+                return null;
+            }
+
+            List<DirectoryTask> subTasks = new ArrayList<>();
+            for (String name : names) {
+                if (isStopped()) break;
+                final String childPath = mPath + "/" + name;
+                StructStat stat = lstat(childPath);
+                if (stat == null) continue;
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    DirectoryTask subTask = new DirectoryTask(childPath);
+                    subTask.fork();
+                    subTasks.add(subTask);
+                } else {
+                    visitFile(childPath, stat);
+                }
+            }
+            for (DirectoryTask subTask : subTasks) subTask.join();
+
+            if (isStopped()) return null;
+            if (mDelete) {
+                try {
+                    Os.rmdir(mPath);
+                } catch (ErrnoException e) {
+                    if (e.errno != OsConstants.ENOENT) fail(new IOException("Unable to delete directory " + mPath, e));
+                    return null;
+                }
+            }
+            mDirectories.incrementAndGet();
+            reportProgress();
+            return null;
+        }
+    }
+
+    private void visitFile(String path, StructStat stat) {
+        if (mDelete) {
+            try {
+                Os.remove(path);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.ENOENT) fail(new IOException("Unable to delete file " + path, e));
+                return;
+            }
+        }
+        mFiles.incrementAndGet();
+        if (stat.st_nlink <= 1 || mCountedLinks.add(stat.st_dev + ":" + stat.st_ino)) mBytes.addAndGet(stat.st_size);
+    }
+
+    /** Get the status of a path without following symlinks, or null if it does not exist or on error. */
+    private StructStat lstat(String path) {
+        try {
+            return Os.lstat(path);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENOENT) fail(new IOException("Unable to stat " + path, e));
+            return null;
+        }
+    }
+
+    private boolean isStopped() {
+        return mCancelled || mError.get() != null;
+    }
+
+    private void fail(IOException e) {
+        mError.compareAndSet(null, e);
+    }
+
+    private void reportProgress() {
+        if (mListener == null) return;
+        final long now = SystemClock.uptimeMillis();
+        final long last = mLastProgressMillis.get();
+        if (now - last >= PROGRESS_INTERVAL_MILLIS && mLastProgressMillis.compareAndSet(last, now)) {
+            mListener.onProgress(mFiles.get(), mBytes.get());
+        }
+    }
+
+}
@@ -42,18 +42,18 @@ import com.termux.terminal.EmulatorDebug;
 import com.termux.terminal.TerminalColors;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSession.SessionChangedCallback;
+import com.termux.terminal.TerminalSessionStats;
 import com.termux.terminal.TextStyle;
+import com.termux.view.TerminalSurfaceView;
 import com.termux.view.TerminalView;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Properties;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -94,11 +94,30 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
 
     TermuxPreferences mSettings;
 
+    @SuppressLint("SdCardPath")
+    private final ConfigFile mColorsFile = new ConfigFile(true, new File("/data/data/com.termux/files/home/.termux/colors.properties"));
+    @SuppressLint("SdCardPath")
+    private final ConfigFile mFontFile = new ConfigFile(false, new File("/data/data/com.termux/files/home/.termux/font.ttf"));
+
+    /** The surface which terminal text is drawn on from a render thread, if enabled in termux.properties. */
+    private TerminalSurfaceView mTerminalSurfaceView;
+
     private LinearLayout mLlTopSwitch;
     private ImageView mIvAdd, mIvMenu;
     private ArrayList<EmulatorBean> mBeans = new ArrayList<>();
     private int INDEX = 0;
 
+    private final TerminalSessionStats mSessionStats = new TerminalSessionStats();
+
+    /** Refreshes the resource usage shown on the session tabs every second while visible, if enabled. */
+    private final Runnable mUpdateSessionStats = new Runnable() {
+        @Override
+        public void run() {
+            updateSessionStats();
+            mTerminalView.postDelayed(this, 1000);
+        }
+    };
+
     /**
      * The connection to the {@link TermuxService}. Requested in {@link #onCreate(Bundle)} with a call to
      * {@link #bindService(Intent, ServiceConnection, int)}, and obtained and stored in
@@ -128,32 +147,62 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
                     return;
                 }
                 checkForFontAndColors();
-                mSettings.reloadFromProperties(TermuxActivity.this);
+                // Only apply termux.properties again if it has actually changed:
+                if (!mSettings.reloadFromProperties(TermuxActivity.this)) return;
+                mTerminalView.setCursorBlinkRate(mSettings.mCursorBlinkRate);
+                applyRenderBackend();
+                if (mTermService != null) {
+                    mTermService.setSessionPoolSize(mSettings.mSessionPoolSize);
+                    mTermService.setSessionAppendLimit(mSettings.mSessionAppendLimit);
+                }
+                mTerminalView.removeCallbacks(mUpdateSessionStats);
+                if (mSettings.mShowSessionStats) {
+                    mUpdateSessionStats.run();
+                } else {
+                    updateSessionStats();
+                }
             }
         }
     };
 
+    /** Place a {@link TerminalSurfaceView} behind the terminal view, or remove it, as specified by the settings. */
+    void applyRenderBackend() {
+        if (mSettings.mRenderOnSurface == (mTerminalSurfaceView != null)) return;
+        ViewGroup parent = (ViewGroup) mTerminalView.getParent();
+        if (mSettings.mRenderOnSurface) {
+            mTerminalSurfaceView = new TerminalSurfaceView(this);
+            RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams((RelativeLayout.LayoutParams) mTerminalView.getLayoutParams());
+            parent.addView(mTerminalSurfaceView, parent.indexOfChild(mTerminalView), params);
+            mTerminalView.setRenderBackend(mTerminalSurfaceView);
+        } else {
+            mTerminalView.setRenderBackend(null);
+            parent.removeView(mTerminalSurfaceView);
+            mTerminalSurfaceView = null;
+        }
+    }
+
+    /** Apply colors.properties and font.ttf if changed since last applied, or not yet applied to this activity. */
     void checkForFontAndColors() {
         try {
-            @SuppressLint("SdCardPath") File fontFile = new File("/data/data/com.termux/files/home/.termux/font.ttf");
-            @SuppressLint("SdCardPath") File colorsFile = new File("/data/data/com.termux/files/home/.termux/colors.properties");
-
-            final Properties props = new Properties();
-            if (colorsFile.isFile()) {
-                try (InputStream in = new FileInputStream(colorsFile)) {
-                    props.load(in);
+            if (mColorsFile.checkForChange()) {
+                TerminalColors.COLOR_SCHEME.updateWith(mColorsFile.getProperties());
+                TerminalSession session = getCurrentTermSession();
+                if (session != null && session.getEmulator() != null) {
+                    session.getEmulator().mColors.reset();
                 }
+                updateBackgroundColor();
             }
+        } catch (Exception e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Error in checkForFontAndColors()", e);
+        }
 
-            TerminalColors.COLOR_SCHEME.updateWith(props);
-            TerminalSession session = getCurrentTermSession();
-            if (session != null && session.getEmulator() != null) {
-                session.getEmulator().mColors.reset();
+        try {
+            // A new typeface means a new renderer measuring all glyphs again, so only when the font has changed:
+            if (mFontFile.checkForChange()) {
+                final File fontFile = mFontFile.getFile();
+                final Typeface newTypeface = (fontFile != null && fontFile.length() > 0) ? Typeface.createFromFile(fontFile) : Typeface.MONOSPACE;
+                mTerminalView.setTypeface(newTypeface);
             }
-            updateBackgroundColor();
-
-            final Typeface newTypeface = (fontFile.exists() && fontFile.length() > 0) ? Typeface.createFromFile(fontFile) : Typeface.MONOSPACE;
-            mTerminalView.setTypeface(newTypeface);
         } catch (Exception e) {
             Log.e(EmulatorDebug.LOG_TAG, "Error in checkForFontAndColors()", e);
         }
@@ -227,6 +276,8 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
         mTerminalView.setOnKeyListener(new TermuxViewClient(this));
 
         mTerminalView.setTextSize(mSettings.getFontSize());
+        mTerminalView.setCursorBlinkRate(mSettings.mCursorBlinkRate);
+        applyRenderBackend();
         mTerminalView.requestFocus();
 
         registerForContextMenu(mTerminalView);
@@ -250,6 +301,8 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
     @Override
     public void onServiceConnected(ComponentName componentName, IBinder service) {
         mTermService = ((TermuxService.LocalBinder) service).service;
+        mTermService.setSessionPoolSize(mSettings.mSessionPoolSize);
+        mTermService.setSessionAppendLimit(mSettings.mSessionAppendLimit);
 
         mTermService.mSessionChangeCallback = new SessionChangedCallback() {
             @Override
@@ -312,23 +365,32 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
             }
         };
 
-        if (mTermService.getSessions().isEmpty()) {
-            if (mIsVisible) {
-                TermuxInstaller.setupIfNeeded(TermuxActivity.this, new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mTermService == null) return; // Activity might have been destroyed.
-                        try {
-                            addNewSession(false);
-                        } catch (WindowManager.BadTokenException e) {
-                            // Activity finished - ignore.
-                        }
-                    }
-                });
-            } else {
-                // The service connected while not in foreground - just bail out.
-                finish();
+        if (mTermService.getSessions().isEmpty() && !mIsVisible) {
+            // The service connected while not in foreground - just bail out.
+            finish();
+            return;
+        }
+
+        // Check the bootstrap also when there are sessions restored by the service, so that it is updated after an app
+        // update. Until done, no shell is started, neither for the pool nor by displaying a restored session:
+        TermuxInstaller.setupIfNeeded(TermuxActivity.this, new Runnable() {
+            @Override
+            public void run() {
+                if (mTermService == null) return; // Activity might have been destroyed.
+                mTermService.onBootstrapReady();
+                try {
+                    showSessions();
+                } catch (WindowManager.BadTokenException e) {
+                    // Activity finished - ignore.
+                }
             }
+        });
+    }
+
+    /** Show the sessions of the service once connected, or a new session if there are none. */
+    private void showSessions() {
+        if (mTermService.getSessions().isEmpty()) {
+            addNewSession(false);
         } else {
             Intent i = getIntent();
             if (i != null && Intent.ACTION_RUN.equals(i.getAction())) {
@@ -384,12 +446,15 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
         // The current terminal session may have changed while being away, force
         // a refresh of the displayed terminal:
         mTerminalView.onScreenUpdated();
+
+        if (mSettings.mShowSessionStats) mUpdateSessionStats.run();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         mIsVisible = false;
+        mTerminalView.removeCallbacks(mUpdateSessionStats);
         TerminalSession currentSession = getCurrentTermSession();
         if (currentSession != null) TermuxPreferences.storeCurrentSession(this, currentSession);
         unregisterReceiver(mBroadcastReceiever);
@@ -439,6 +504,30 @@ public final class TermuxActivity extends Activity implements ServiceConnection,
         }
     }
 
+    /** Show the resource usage of each session on its tab, or hide it if not enabled. */
+    void updateSessionStats() {
+        for (EmulatorBean bean : mBeans) {
+            TextView statsView = (TextView) bean.stats;
+            if (!mSettings.mShowSessionStats) {
+                statsView.setVisibility(View.GONE);
+                continue;
+            }
+            bean.session.getStats(mSessionStats);
+            statsView.setText(getString(R.string.session_stats, formatCount(mSessionStats.getBytesRead()),
+                formatCount(mSessionStats.getBytesWritten()), mSessionStats.getAppendNanos() / 1000000,
+                formatCount(mSessionStats.getRowsAllocated()), mSessionStats.getQueueStalls(),
+                formatCount(mSessionStats.getRedraws())));
+            statsView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /** Format a count compactly, such as 1.2k or 3.4M, the same in all locales like the SI prefixes. */
+    static String formatCount(long count) {
+        if (count < 1000) return Long.toString(count);
+        if (count < 1000000) return String.format(Locale.ROOT, "%.1fk", count / 1000f);
+        return String.format(Locale.ROOT, "%.1fM", count / 1000000f);
+    }
+
     void changeTitle(TerminalSession session, boolean isSelected) {
         for (EmulatorBean bean : mBeans) {
             if (bean.session == session) {
@@ -7,29 +7,32 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.DialogInterface.OnDismissListener;
+import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.os.UserManager;
+import android.preference.PreferenceManager;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.text.TextUtils;
 import android.util.Log;
-import android.util.Pair;
 import android.view.WindowManager;
 
 import com.termux.R;
 import com.termux.terminal.EmulatorDebug;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.Set;
 
 /**
  * Install the Termux bootstrap packages if necessary by following the below steps:
@@ -43,15 +46,25 @@ import java.util.zip.ZipInputStream;
  * <p/>
  * (4) The architecture is determined and an appropriate bootstrap zip url is determined in {@link #determineZipUrl()}.
  * <p/>
- * (5) The zip, containing entries relative to the $PREFIX, is is downloaded and extracted by a zip input stream
- * continuously encountering zip file entries:
+ * (5) The zip, containing entries relative to the $PREFIX, is extracted into $STAGING_PREFIX by a
+ * {@link BootstrapExtractor}, which also creates the symlinks listed in its SYMLINKS.txt entry and sets execute
+ * permissions where necessary. If the apk contains a {@link BootstrapImage} made from the zip, that is installed instead.
  * <p/>
- * (5.1) If the zip entry encountered is SYMLINKS.txt, go through it and remember all symlinks to setup.
+ * (6) $STAGING_PREFIX is renamed to $PREFIX, and a {@link BootstrapManifest} of what was installed is written.
  * <p/>
- * (5.2) For every other zip entry, extract it into $STAGING_PREFIX and set execute permissions if necessary.
+ * When the app has been updated and $PREFIX exists, the bootstrap zip may have changed. If so, only the changed parts
+ * are installed by {@link #updateBootstrap(Activity, Runnable)}.
  */
 final class TermuxInstaller {
 
+    private static final String STAGING_PREFIX_PATH = TermuxService.FILES_PATH + "/usr-staging";
+    /** Where the old $PREFIX is moved while the updated one is moved in place. */
+    private static final String OLD_PREFIX_PATH = TermuxService.FILES_PATH + "/usr-old";
+    /** The manifest of the installed bootstrap, kept outside of $PREFIX. */
+    private static final String MANIFEST_PATH = TermuxService.FILES_PATH + "/bootstrap.manifest";
+    /** The last update time of the app when the installed bootstrap was last checked to be up to date. */
+    private static final String BOOTSTRAP_CHECKED_KEY = "bootstrap_checked_app_update_time";
+
     /** Performs setup if necessary. */
     static void setupIfNeeded(final Activity activity, final Runnable whenDone) {
         // Termux can only be run as the primary user (device owner) since only that
@@ -70,8 +83,16 @@ final class TermuxInstaller {
         }
 
         final File PREFIX_FILE = new File(TermuxService.PREFIX_PATH);
+        final File OLD_PREFIX_FILE = new File(OLD_PREFIX_PATH);
+        // An update may have been interrupted between moving the old $PREFIX away and moving the updated one in place:
+        if (!PREFIX_FILE.exists() && OLD_PREFIX_FILE.isDirectory() && !OLD_PREFIX_FILE.renameTo(PREFIX_FILE))
+            Log.e(EmulatorDebug.LOG_TAG, "Unable to restore " + OLD_PREFIX_PATH);
         if (PREFIX_FILE.isDirectory()) {
-            whenDone.run();
+            if (isBootstrapCheckNeeded(activity)) {
+                updateBootstrap(activity, whenDone);
+            } else {
+                whenDone.run();
+            }
             return;
         }
 
@@ -80,67 +101,26 @@ final class TermuxInstaller {
             @Override
             public void run() {
                 try {
-                    final String STAGING_PREFIX_PATH = TermuxService.FILES_PATH + "/usr-staging";
                     final File STAGING_PREFIX_FILE = new File(STAGING_PREFIX_PATH);
 
                     if (STAGING_PREFIX_FILE.exists()) {
                         deleteFolder(STAGING_PREFIX_FILE);
                     }
 
-                    final byte[] buffer = new byte[8096];
-                    final List<Pair<String, String>> symlinks = new ArrayList<>(50);
-
                     final URL zipUrl = determineZipUrl();
-                    //try (ZipInputStream zipInput = new ZipInputStream(zipUrl.openStream())) {
-                    try {
-                        ZipInputStream zipInput
-                                = new ZipInputStream(activity.getAssets().open("bootstrap.zip"));
-                        ZipEntry zipEntry;
-                        while ((zipEntry = zipInput.getNextEntry()) != null) {
-                            if (zipEntry.getName().equals("SYMLINKS.txt")) {
-                                BufferedReader symlinksReader = new BufferedReader(new InputStreamReader(zipInput));
-                                String line;
-                                while ((line = symlinksReader.readLine()) != null) {
-                                    String[] parts = line.split("←");
-                                    if (parts.length != 2)
-                                        throw new RuntimeException("Malformed symlink line: " + line);
-                                    String oldPath = parts[0];
-                                    String newPath = STAGING_PREFIX_PATH + "/" + parts[1];
-                                    symlinks.add(Pair.create(oldPath, newPath));
-                                }
-                            } else {
-                                String zipEntryName = zipEntry.getName();
-                                File targetFile = new File(STAGING_PREFIX_PATH, zipEntryName);
-                                if (zipEntry.isDirectory()) {
-                                    if (!targetFile.mkdirs())
-                                        throw new RuntimeException("Failed to create directory: " + targetFile.getAbsolutePath());
-                                } else {
-                                    try (FileOutputStream outStream = new FileOutputStream(targetFile)) {
-                                        int readBytes;
-                                        while ((readBytes = zipInput.read(buffer)) != -1)
-                                            outStream.write(buffer, 0, readBytes);
-                                    }
-                                    if (zipEntryName.startsWith("bin/") || zipEntryName.startsWith("libexec") || zipEntryName.startsWith("lib/apt/methods")) {
-                                        //noinspection OctalInteger
-                                        Os.chmod(targetFile.getAbsolutePath(), 0700);
-                                    }
-                                }
-                            }
-                        }
-                    } catch (Exception e){
-                        e.printStackTrace();
-                    }
-
-                    if (symlinks.isEmpty())
-                        throw new RuntimeException("No SYMLINKS.txt encountered");
-                    for (Pair<String, String> symlink : symlinks) {
-                        Os.symlink(symlink.first, symlink.second);
-                    }
+                    final String progressMessage = activity.getString(R.string.bootstrap_installer_body);
+                    BootstrapExtractor extractor = new BootstrapExtractor(STAGING_PREFIX_FILE, newProgressListener(activity, progress, progressMessage));
+                    extractor.extract(activity.getAssets());
 
                     if (!STAGING_PREFIX_FILE.renameTo(PREFIX_FILE)) {
                         throw new RuntimeException("Unable to rename staging folder");
                     }
 
+                    BootstrapManifest manifest = extractor.getManifest();
+                    manifest.recordModificationTimes(PREFIX_FILE, null);
+                    manifest.write(new File(MANIFEST_PATH));
+                    setBootstrapChecked(activity);
+
                     activity.runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
@@ -149,11 +129,18 @@ final class TermuxInstaller {
                     });
                 } catch (final Exception e) {
                     Log.e(EmulatorDebug.LOG_TAG, "Bootstrap error", e);
+                    final String message;
+                    if (e instanceof BootstrapExtractor.BootstrapIntegrityException) {
+                        message = activity.getString(R.string.bootstrap_error_corrupt_body,
+                            TextUtils.join("\n", ((BootstrapExtractor.BootstrapIntegrityException) e).mCorruptEntries));
+                    } else {
+                        message = activity.getString(R.string.bootstrap_error_body);
+                    }
                     activity.runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
                             try {
-                                new AlertDialog.Builder(activity).setTitle(R.string.bootstrap_error_title).setMessage(R.string.bootstrap_error_body)
+                                new AlertDialog.Builder(activity).setTitle(R.string.bootstrap_error_title).setMessage(message)
                                     .setNegativeButton(R.string.bootstrap_error_abort, new OnClickListener() {
                                         @Override
                                         public void onClick(DialogInterface dialog, int which) {
@@ -188,6 +175,178 @@ final class TermuxInstaller {
         }.start();
     }
 
+    private static BootstrapExtractor.ProgressListener newProgressListener(final Activity activity, final ProgressDialog progress,
+                                                                          final String progressMessage) {
+        return new BootstrapExtractor.ProgressListener() {
+            @Override
+            public void onProgress(final int percent) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progress.setMessage(progressMessage + " " + percent + "%");
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * If the installed bootstrap should be checked against the bootstrap zip, which is when the app has been updated
+     * since the last check and it is known from a manifest what was installed.
+     */
+    private static boolean isBootstrapCheckNeeded(Context context) {
+        if (!new File(MANIFEST_PATH).isFile()) return false;
+        return PreferenceManager.getDefaultSharedPreferences(context).getLong(BOOTSTRAP_CHECKED_KEY, 0) != getAppUpdateTime(context);
+    }
+
+    private static void setBootstrapChecked(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putLong(BOOTSTRAP_CHECKED_KEY, getAppUpdateTime(context)).apply();
+    }
+
+    private static long getAppUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Bring the installed bootstrap up to date with the bootstrap zip without extracting all of it again:
+     * <p/>
+     * (1) $PREFIX is copied to $STAGING_PREFIX as hard links, which takes no space and writes no file data.
+     * <p/>
+     * (2) Each file and symlink in the zip which differs from what the manifest says is installed is removed from
+     * $STAGING_PREFIX and then extracted anew. Files and symlinks no longer in the zip are removed. Files which the user
+     * (or a package) has changed since they were installed are left alone, and forgotten by the manifest.
+     * <p/>
+     * (3) $PREFIX is moved away, $STAGING_PREFIX moved in its place and the old $PREFIX deleted.
+     * <p/>
+     * If anything fails the installed bootstrap is kept as it is.
+     */
+    private static void updateBootstrap(final Activity activity, final Runnable whenDone) {
+        final String progressMessage = activity.getString(R.string.bootstrap_updater_body);
+        final ProgressDialog progress = ProgressDialog.show(activity, null, progressMessage, true, false);
+        new Thread() {
+            @Override
+            public void run() {
+                final File PREFIX_FILE = new File(TermuxService.PREFIX_PATH);
+                final File STAGING_PREFIX_FILE = new File(STAGING_PREFIX_PATH);
+                final File OLD_PREFIX_FILE = new File(OLD_PREFIX_PATH);
+                try {
+                    if (STAGING_PREFIX_FILE.exists()) deleteFolder(STAGING_PREFIX_FILE);
+                    if (OLD_PREFIX_FILE.exists()) deleteFolder(OLD_PREFIX_FILE);
+
+                    final long startMillis = SystemClock.uptimeMillis();
+                    BootstrapManifest installed = BootstrapManifest.read(new File(MANIFEST_PATH));
+                    BootstrapExtractor extractor = new BootstrapExtractor(STAGING_PREFIX_FILE, newProgressListener(activity, progress, progressMessage));
+                    BootstrapManifest bootstrap = extractor.readManifest(activity.getAssets());
+                    if (installed == null || bootstrap == null) {
+                        Log.w(EmulatorDebug.LOG_TAG, "Unable to compare installed bootstrap with the bootstrap zip, not updating");
+                    } else if (!bootstrap.mBootstrapId.equals(installed.mBootstrapId)) {
+                        linkTree(PREFIX_FILE, STAGING_PREFIX_FILE);
+
+                        Set<String> toExtract = new HashSet<>();
+                        List<String> modifiedByUser = new ArrayList<>();
+                        int unchanged = 0, removed = 0;
+                        for (BootstrapManifest.Entry entry : bootstrap.mEntries.values()) {
+                            BootstrapManifest.Entry installedEntry = installed.get(entry.mPath);
+                            File current = new File(PREFIX_FILE, entry.mPath);
+                            if (installedEntry != null && installedEntry.hasSameContent(entry)) {
+                                entry.mModificationTime = installedEntry.mModificationTime;
+                                unchanged++;
+                            } else if (installedEntry != null ? installedEntry.isInstalledAt(current) : !exists(current)) {
+                                toExtract.add(entry.mPath);
+                                // Never write through a hard link into the installed $PREFIX:
+                                File staged = new File(STAGING_PREFIX_FILE, entry.mPath);
+                                if (exists(staged) && !staged.delete())
+                                    throw new IOException("Unable to delete " + staged.getAbsolutePath());
+                            } else {
+                                modifiedByUser.add(entry.mPath);
+                            }
+                        }
+                        for (BootstrapManifest.Entry installedEntry : installed.mEntries.values()) {
+                            if (bootstrap.get(installedEntry.mPath) != null) continue;
+                            if (installedEntry.isInstalledAt(new File(PREFIX_FILE, installedEntry.mPath))) {
+                                File staged = new File(STAGING_PREFIX_FILE, installedEntry.mPath);
+                                if (!staged.delete()) throw new IOException("Unable to delete " + staged.getAbsolutePath());
+                                removed++;
+                            }
+                        }
+
+                        extractor.extract(activity.getAssets(), toExtract);
+                        bootstrap.recordModificationTimes(STAGING_PREFIX_FILE, toExtract);
+                        for (String path : modifiedByUser) bootstrap.mEntries.remove(path);
+
+                        if (!PREFIX_FILE.renameTo(OLD_PREFIX_FILE)) throw new IOException("Unable to move away " + PREFIX_FILE.getAbsolutePath());
+                        if (!STAGING_PREFIX_FILE.renameTo(PREFIX_FILE)) {
+                            if (!OLD_PREFIX_FILE.renameTo(PREFIX_FILE)) Log.e(EmulatorDebug.LOG_TAG, "Unable to restore " + OLD_PREFIX_PATH);
+                            throw new IOException("Unable to rename staging folder");
+                        }
+                        bootstrap.write(new File(MANIFEST_PATH));
+                        deleteFolder(OLD_PREFIX_FILE);
+
+                        Log.i(EmulatorDebug.LOG_TAG, "Updated bootstrap in " + (SystemClock.uptimeMillis() - startMillis) + " ms: "
+                            + toExtract.size() + " extracted, " + unchanged + " unchanged, " + removed + " removed, "
+                            + modifiedByUser.size() + " kept since modified");
+                    }
+                    setBootstrapChecked(activity);
+                } catch (Exception e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "Bootstrap update failed, keeping the installed bootstrap", e);
+                    try {
+                        if (STAGING_PREFIX_FILE.exists()) deleteFolder(STAGING_PREFIX_FILE);
+                    } catch (Exception e2) {
+                        Log.e(EmulatorDebug.LOG_TAG, "Unable to clean up after failed bootstrap update", e2);
+                    }
+                } finally {
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                progress.dismiss();
+                            } catch (RuntimeException e) {
+                                // Activity already dismissed - ignore.
+                            }
+                            whenDone.run();
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    /** Recreate a folder tree with hard links to its files, keeping symlinks as they are. */
+    private static void linkTree(File source, File target) throws IOException, ErrnoException {
+        StructStat dirStat = Os.lstat(source.getAbsolutePath());
+        if (!target.mkdir()) throw new IOException("Failed to create directory: " + target.getAbsolutePath());
+        Os.chmod(target.getAbsolutePath(), dirStat.st_mode & 07777);
+        String[] names = source.list();
+        if (names == null) throw new IOException("Unable to list " + source.getAbsolutePath());
+        for (String name : names) {
+            String sourcePath = new File(source, name).getAbsolutePath();
+            File targetFile = new File(target, name);
+            StructStat stat = Os.lstat(sourcePath);
+            if (OsConstants.S_ISDIR(stat.st_mode)) {
+                linkTree(new File(sourcePath), targetFile);
+            } else if (OsConstants.S_ISLNK(stat.st_mode)) {
+                Os.symlink(Os.readlink(sourcePath), targetFile.getAbsolutePath());
+            } else if (OsConstants.S_ISREG(stat.st_mode)) {
+                Os.link(sourcePath, targetFile.getAbsolutePath());
+            }
+            // Sockets and pipes are not kept, since they are recreated by the programs using them.
+        }
+    }
+
+    /** If a file exists, without following symlinks. */
+    private static boolean exists(File file) {
+        try {
+            Os.lstat(file.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
     /** Get bootstrap zip url for this systems cpu architecture. */
     static URL determineZipUrl() throws MalformedURLException {
         String archName = determineTermuxArchName();
@@ -216,19 +375,7 @@ final class TermuxInstaller {
 
     /** Delete a folder and all its content or throw. Don't follow symlinks. */
     static void deleteFolder(File fileOrDirectory) throws IOException {
-        if (fileOrDirectory.getCanonicalPath().equals(fileOrDirectory.getAbsolutePath()) && fileOrDirectory.isDirectory()) {
-            File[] children = fileOrDirectory.listFiles();
-
-            if (children != null) {
-                for (File child : children) {
-                    deleteFolder(child);
-                }
-            }
-        }
-
-        if (!fileOrDirectory.delete()) {
-            throw new RuntimeException("Unable to delete " + (fileOrDirectory.isDirectory() ? "directory " : "file ") + fileOrDirectory.getAbsolutePath());
-        }
+        new FileTreeWalker(null).delete(fileOrDirectory);
     }
 
     public static void setupStorageSymlinks(final Context context) {
@@ -11,7 +11,6 @@ import android.widget.Toast;
 import com.termux.terminal.TerminalSession;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -39,11 +38,34 @@ final class TermuxPreferences {
 
     private int mFontSize;
 
+    /** The termux.properties file, preferably in ~/.termux/ but also looked for in ~/.config/termux/. */
+    private final ConfigFile mPropertiesFile = new ConfigFile(true,
+        new File(TermuxService.HOME_PATH + "/.termux/termux.properties"),
+        new File(TermuxService.HOME_PATH + "/.config/termux/termux.properties"));
+
     @AsciiBellBehaviour
     int mBellBehaviour = BELL_VIBRATE;
 
     boolean mBackIsEscape;
 
+    /** The interval in milliseconds between cursor blinks, or 0 for a non-blinking cursor. */
+    int mCursorBlinkRate;
+
+    /** If terminal text should be drawn on a surface from a render thread instead of on the main thread. */
+    boolean mRenderOnSurface;
+
+    /**
+     * The number of login shell sessions to start ahead of time, so that opening a new session is instant. None by
+     * default, since a pooled shell runs the profile of the user, with any side effects, without being opened.
+     */
+    int mSessionPoolSize;
+
+    /** If the resource usage of each session should be shown on its tab. */
+    boolean mShowSessionStats;
+
+    /** The milliseconds per frame that processing the output of a session may take, or 0 for no limit. */
+    int mSessionAppendLimit;
+
     TermuxPreferences(Context context) {
         reloadFromProperties(context);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -93,22 +115,20 @@ final class TermuxPreferences {
         return null;
     }
 
-    public void reloadFromProperties(Context context) {
-        File propsFile = new File(TermuxService.HOME_PATH + "/.termux/termux.properties");
-        if (!propsFile.exists())
-            propsFile = new File(TermuxService.HOME_PATH + "/.config/termux/termux.properties");
-
-        Properties props = new Properties();
+    /**
+     * Reload the settings from termux.properties if it has changed since last loaded.
+     *
+     * @return if the settings were reloaded and so need to be applied again.
+     */
+    public boolean reloadFromProperties(Context context) {
         try {
-            if (propsFile.isFile() && propsFile.canRead()) {
-                try (FileInputStream in = new FileInputStream(propsFile)) {
-                    props.load(in);
-                }
-            }
+            if (!mPropertiesFile.checkForChange()) return false;
         } catch (IOException e) {
             Toast.makeText(context, "Error loading properties: " + e.getMessage(), Toast.LENGTH_LONG).show();
             Log.e("termux", "Error loading props", e);
+            return false;
         }
+        Properties props = mPropertiesFile.getProperties();
         switch (props.getProperty("bell-character", "vibrate")) {
             case "beep":
                 mBellBehaviour = BELL_BEEP;
@@ -121,11 +141,38 @@ final class TermuxPreferences {
                 break;
         }
         mBackIsEscape = "escape".equals(props.getProperty("back-key", "back"));
+        try {
+            mCursorBlinkRate = Integer.parseInt(props.getProperty("terminal-cursor-blink-rate", "0").trim());
+        } catch (NumberFormatException e) {
+            Log.e("termux", "Invalid terminal-cursor-blink-rate, not blinking the cursor");
+            mCursorBlinkRate = 0;
+        }
+        // Avoid a blink rate so fast that the cursor would mostly be redrawing:
+        mCursorBlinkRate = (mCursorBlinkRate <= 0) ? 0 : Math.max(100, Math.min(mCursorBlinkRate, 2000));
+        mRenderOnSurface = "surface".equals(props.getProperty("terminal-render-backend", "view"));
+        try {
+            mSessionPoolSize = Integer.parseInt(props.getProperty("session-pool-size", "0").trim());
+        } catch (NumberFormatException e) {
+            Log.e("termux", "Invalid session-pool-size, not starting sessions ahead of time");
+            mSessionPoolSize = 0;
+        }
+        // Each pooled session is a running shell, so keep the number of them small:
+        mSessionPoolSize = Math.max(0, Math.min(mSessionPoolSize, 4));
+        mShowSessionStats = "true".equals(props.getProperty("show-session-stats", "false"));
+        try {
+            mSessionAppendLimit = Integer.parseInt(props.getProperty("session-append-limit", "0").trim());
+        } catch (NumberFormatException e) {
+            Log.e("termux", "Invalid session-append-limit, not limiting sessions");
+            mSessionAppendLimit = 0;
+        }
+        // A frame is 16 ms, so do not let a limit starve the output altogether:
+        mSessionAppendLimit = Math.max(0, Math.min(mSessionAppendLimit, 16));
         shortcuts.clear();
         parseAction("shortcut.create-session", SHORTCUT_ACTION_CREATE_SESSION, props);
         parseAction("shortcut.next-session", SHORTCUT_ACTION_NEXT_SESSION, props);
         parseAction("shortcut.previous-session", SHORTCUT_ACTION_PREVIOUS_SESSION, props);
         parseAction("shortcut.rename-session", SHORTCUT_ACTION_RENAME_SESSION, props);
+        return true;
     }
 
     public static final int SHORTCUT_ACTION_CREATE_SESSION = 1;
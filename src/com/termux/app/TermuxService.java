@@ -20,9 +20,19 @@ import com.termux.R;
 import com.termux.terminal.EmulatorDebug;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSession.SessionChangedCallback;
+import com.termux.terminal.TerminalSnapshot;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
@@ -44,6 +54,13 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
     private static final int NOTIFICATION_ID = 1337;
 
+    /** The delay before starting sessions for the pool, to not compete with a session which has just been opened. */
+    private static final long SESSION_POOL_FILL_DELAY_MILLIS = 2000;
+    /** The interval between capturing the contents of sessions, see {@link #mSnapshots}. */
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 2000;
+    /** The file listing the sessions with snapshots, one "handle TAB name" line per session. */
+    private static final String SNAPSHOT_INDEX_FILE = "sessions";
+
     private static final String ACTION_STOP_SERVICE = "com.termux.service_stop";
     private static final String ACTION_LOCK_WAKE = "com.termux.service_wake_lock";
     private static final String ACTION_UNLOCK_WAKE = "com.termux.service_wake_unlock";
@@ -54,6 +71,12 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
     public static final String EXTRA_CURRENT_WORKING_DIRECTORY = "com.termux.execute.cwd";
     private static final String EXTRA_EXECUTE_IN_BACKGROUND = "com.termux.execute.background";
+    /** The priority of a background job, see {@link BackgroundJobScheduler#PRIORITY_NORMAL}. */
+    public static final String EXTRA_PRIORITY = "com.termux.execute.priority";
+    /** The number of times to retry a background job if it fails. */
+    public static final String EXTRA_RETRIES = "com.termux.execute.retries";
+    /** The number of seconds after which a background job is killed. */
+    public static final String EXTRA_TIMEOUT_SECONDS = "com.termux.execute.timeout";
 
     /** This service is only bound from inside the same process and never uses IPC. */
     class LocalBinder extends Binder {
@@ -72,7 +95,60 @@ public final class TermuxService extends Service implements SessionChangedCallba
      */
     final List<TerminalSession> mTerminalSessions = new ArrayList<>();
 
-    final List<BackgroundJob> mBackgroundTasks = new ArrayList<>();
+    final BackgroundJobScheduler mJobScheduler = new BackgroundJobScheduler(mHandler);
+
+    /**
+     * Login shell sessions started ahead of time, which {@link #createTermSession(String, String[], String, boolean)}
+     * hands out instead of starting a new session so that the shell is ready to use immediately. They are not part of
+     * {@link #mTerminalSessions} until handed out, and are invisible so do not cause any screen updates meanwhile.
+     */
+    private final List<TerminalSession> mSessionPool = new ArrayList<>();
+    /** The number of sessions to keep in {@link #mSessionPool}. */
+    private int mSessionPoolSize;
+    /** See {@link TerminalSession#setAppendTimeLimit(long)}. */
+    private int mSessionAppendLimit;
+    /**
+     * If the bootstrap has been checked to be installed and up to date, see {@link #onBootstrapReady()}. Sessions are not
+     * pooled before that, since the bootstrap may be replaced under a shell meanwhile.
+     */
+    private boolean mBootstrapReady;
+
+    private final Runnable mFillSessionPool = new Runnable() {
+        @Override
+        public void run() {
+            // Only pool sessions once the bootstrap is installed, since the shell is chosen when the session is started:
+            if (mWantsToStop || !mBootstrapReady || !new File(PREFIX_PATH).isDirectory()) return;
+            while (mSessionPool.size() < mSessionPoolSize) {
+                TerminalSession session = startTermSession(null, null, null, false);
+                // Start the process at a default size, the real one is set when the session is attached to a view:
+                session.updateSize(80, 24);
+                mSessionPool.add(session);
+            }
+        }
+    };
+
+    /**
+     * The snapshots of login shell sessions, captured regularly so that their contents can be restored when the
+     * service is started again after having been killed. Sessions running other programs are not restored since that
+     * would run the program again.
+     */
+    private final IdentityHashMap<TerminalSession, TerminalSnapshot> mSnapshots = new IdentityHashMap<>();
+    private File mSnapshotDirectory;
+    /** The contents of the snapshot index file as last written. */
+    private String mSnapshotIndex = "";
+
+    private final Runnable mCaptureSnapshots = new Runnable() {
+        @Override
+        public void run() {
+            for (TerminalSession session : mTerminalSessions) {
+                TerminalSnapshot snapshot = mSnapshots.get(session);
+                if (snapshot != null && session.getEmulator() != null) snapshot.capture(session.getEmulator());
+            }
+            // Session names may have been changed by the user:
+            writeSnapshotIndex();
+            if (!mSnapshots.isEmpty()) mHandler.postDelayed(this, SNAPSHOT_INTERVAL_MILLIS);
+        }
+    };
 
     /** Note that the service may often outlive the activity, so need to clear this reference. */
     SessionChangedCallback mSessionChangeCallback;
@@ -92,6 +168,7 @@ public final class TermuxService extends Service implements SessionChangedCallba
             mWantsToStop = true;
             for (int i = 0; i < mTerminalSessions.size(); i++)
                 mTerminalSessions.get(i).finishIfRunning();
+            setSessionPoolSize(0);
             stopSelf();
         } else if (ACTION_LOCK_WAKE.equals(action)) {
             if (mWakeLock == null) {
@@ -121,7 +198,8 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
             if (intent.getBooleanExtra(EXTRA_EXECUTE_IN_BACKGROUND, false)) {
                 BackgroundJob task = new BackgroundJob(cwd, executablePath, arguments, this);
-                mBackgroundTasks.add(task);
+                mJobScheduler.schedule(task, intent.getIntExtra(EXTRA_PRIORITY, BackgroundJobScheduler.PRIORITY_NORMAL),
+                    intent.getIntExtra(EXTRA_RETRIES, 0), 1000L * intent.getIntExtra(EXTRA_TIMEOUT_SECONDS, 0));
             } else {
                 TerminalSession newSession = createTermSession(executablePath, arguments, cwd, false);
 
@@ -155,6 +233,8 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
     @Override
     public void onCreate() {
+        mSnapshotDirectory = getDir("sessions", Context.MODE_PRIVATE);
+        restoreSessions();
     }
 
     @Override
@@ -166,13 +246,63 @@ public final class TermuxService extends Service implements SessionChangedCallba
 
         for (int i = 0; i < mTerminalSessions.size(); i++)
             mTerminalSessions.get(i).finishIfRunning();
+        setSessionPoolSize(0);
+        mJobScheduler.cancelAll();
+
+        mHandler.removeCallbacks(mCaptureSnapshots);
+        if (mWantsToStop) {
+            // The user has asked to exit, so do not bring the sessions back:
+            for (TerminalSnapshot snapshot : mSnapshots.values()) snapshot.delete();
+            mSnapshots.clear();
+            writeSnapshotIndex();
+        }
     }
 
     public List<TerminalSession> getSessions() {
         return mTerminalSessions;
     }
 
+    /**
+     * Set the number of login shell sessions to keep started ahead of time, finishing pooled sessions if lowered.
+     */
+    void setSessionPoolSize(int size) {
+        mSessionPoolSize = size;
+        while (mSessionPool.size() > size) mSessionPool.remove(mSessionPool.size() - 1).finishIfRunning();
+        mHandler.removeCallbacks(mFillSessionPool);
+        if (mSessionPool.size() < size) mHandler.postDelayed(mFillSessionPool, SESSION_POOL_FILL_DELAY_MILLIS);
+    }
+
+    /**
+     * Called when {@link TermuxInstaller#setupIfNeeded} is done installing or updating the bootstrap, after which the
+     * session pool may be filled.
+     */
+    void onBootstrapReady() {
+        if (mBootstrapReady) return;
+        mBootstrapReady = true;
+        setSessionPoolSize(mSessionPoolSize);
+    }
+
+    /** Limit the time that the output of each session may take per frame, see {@link TerminalSession#setAppendTimeLimit(long)}. */
+    void setSessionAppendLimit(int millisPerFrame) {
+        mSessionAppendLimit = millisPerFrame;
+        for (TerminalSession session : mTerminalSessions) session.setAppendTimeLimit(millisPerFrame);
+        for (TerminalSession session : mSessionPool) session.setAppendTimeLimit(millisPerFrame);
+    }
+
     TerminalSession createTermSession(String executablePath, String[] arguments, String cwd, boolean failSafe) {
+        TerminalSession session = null;
+        if (executablePath == null && arguments == null && cwd == null && !failSafe && !mSessionPool.isEmpty()) {
+            session = mSessionPool.remove(0);
+            mHandler.removeCallbacks(mFillSessionPool);
+            mHandler.postDelayed(mFillSessionPool, SESSION_POOL_FILL_DELAY_MILLIS);
+        }
+        if (session == null) session = startTermSession(executablePath, arguments, cwd, failSafe);
+        mTerminalSessions.add(session);
+        if (executablePath == null && !failSafe) addSnapshot(session, null);
+        return session;
+    }
+
+    private TerminalSession startTermSession(String executablePath, String[] arguments, String cwd, boolean failSafe) {
         new File(HOME_PATH).mkdirs();
 
         if (cwd == null) cwd = HOME_PATH;
@@ -207,13 +337,18 @@ public final class TermuxService extends Service implements SessionChangedCallba
         if (processArgs.length > 1) System.arraycopy(processArgs, 1, args, 1, processArgs.length - 1);
 
         TerminalSession session = new TerminalSession(executablePath, cwd, args, env, this);
-        mTerminalSessions.add(session);
+        session.setAppendTimeLimit(mSessionAppendLimit);
         return session;
     }
 
     public int removeTermSession(TerminalSession sessionToRemove) {
         int indexOfRemoved = mTerminalSessions.indexOf(sessionToRemove);
         mTerminalSessions.remove(indexOfRemoved);
+        TerminalSnapshot snapshot = mSnapshots.remove(sessionToRemove);
+        if (snapshot != null) {
+            snapshot.delete();
+            writeSnapshotIndex();
+        }
         if (mTerminalSessions.isEmpty() && mWakeLock == null) {
             // Finish if there are no sessions left and the wake lock is not held, otherwise keep the service alive if
             // holding wake lock since there may be daemon processes (e.g. sshd) running.
@@ -222,42 +357,144 @@ public final class TermuxService extends Service implements SessionChangedCallba
         return indexOfRemoved;
     }
 
+    /**
+     * Start capturing snapshots of a session, into a file named after the session handle.
+     *
+     * @param restoredFile the snapshot that the session was restored from, which is taken over, or null.
+     */
+    private void addSnapshot(TerminalSession session, File restoredFile) {
+        File file = new File(mSnapshotDirectory, session.mHandle);
+        if (restoredFile != null && !restoredFile.renameTo(file))
+            Log.w(EmulatorDebug.LOG_TAG, "Cannot rename session snapshot " + restoredFile);
+        if (mSnapshots.isEmpty()) mHandler.postDelayed(mCaptureSnapshots, SNAPSHOT_INTERVAL_MILLIS);
+        mSnapshots.put(session, new TerminalSnapshot(file));
+        writeSnapshotIndex();
+    }
+
+    /** Write the list of sessions with snapshots, in the order of {@link #mTerminalSessions}, if it has changed. */
+    private void writeSnapshotIndex() {
+        StringBuilder index = new StringBuilder();
+        for (TerminalSession session : mTerminalSessions) {
+            if (!mSnapshots.containsKey(session)) continue;
+            String name = (session.mSessionName == null) ? "" : session.mSessionName.replace('\t', ' ').replace('\n', ' ');
+            index.append(session.mHandle).append('\t').append(name).append('\n');
+        }
+        if (index.toString().equals(mSnapshotIndex)) return;
+        mSnapshotIndex = index.toString();
+
+        File indexFile = new File(mSnapshotDirectory, SNAPSHOT_INDEX_FILE);
+        File tmpFile = new File(mSnapshotDirectory, SNAPSHOT_INDEX_FILE + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            writer.write(mSnapshotIndex);
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Error writing session index", e);
+            return;
+        }
+        if (!tmpFile.renameTo(indexFile)) Log.e(EmulatorDebug.LOG_TAG, "Cannot rename session index");
+    }
+
+    /**
+     * Recreate the login shell sessions listed in the snapshot index, showing their earlier contents. The processes are
+     * started when the sessions are first displayed.
+     */
+    private void restoreSessions() {
+        File indexFile = new File(mSnapshotDirectory, SNAPSHOT_INDEX_FILE);
+        if (!indexFile.isFile()) return;
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Error reading session index", e);
+            return;
+        }
+
+        for (String line : lines) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) continue;
+            File snapshotFile = new File(mSnapshotDirectory, line.substring(0, tab));
+            TerminalSnapshot.Contents contents;
+            try {
+                contents = TerminalSnapshot.read(snapshotFile);
+            } catch (IOException e) {
+                Log.w(EmulatorDebug.LOG_TAG, "Not restoring session: " + e.getMessage());
+                snapshotFile.delete();
+                continue;
+            }
+            TerminalSession session = startTermSession(null, null, null, false);
+            session.restoreSnapshot(contents);
+            String name = line.substring(tab + 1);
+            if (!name.isEmpty()) session.mSessionName = name;
+            mTerminalSessions.add(session);
+            addSnapshot(session, snapshotFile);
+        }
+    }
+
     @Override
     public void onTitleChanged(TerminalSession changedSession) {
+        if (mSessionPool.contains(changedSession)) return;
         if (mSessionChangeCallback != null) mSessionChangeCallback.onTitleChanged(changedSession);
     }
 
     @Override
     public void onSessionFinished(final TerminalSession finishedSession) {
+        if (mSessionPool.remove(finishedSession)) {
+            // Do not keep restarting a shell which exits by itself, the pool is filled again on the next call to
+            // setSessionPoolSize().
+            Log.w(EmulatorDebug.LOG_TAG, "Pooled session exited with status " + finishedSession.getExitStatus() + ", no longer pooling sessions");
+            mSessionPoolSize = 0;
+            return;
+        }
         if (mSessionChangeCallback != null)
             mSessionChangeCallback.onSessionFinished(finishedSession);
     }
 
     @Override
     public void onTextChanged(TerminalSession changedSession) {
+        if (mSessionPool.contains(changedSession)) return;
         if (mSessionChangeCallback != null) mSessionChangeCallback.onTextChanged(changedSession);
     }
 
     @Override
     public void onClipboardText(TerminalSession session, String text) {
+        if (mSessionPool.contains(session)) return;
         if (mSessionChangeCallback != null) mSessionChangeCallback.onClipboardText(session, text);
     }
 
     @Override
     public void onBell(TerminalSession session) {
+        if (mSessionPool.contains(session)) return;
         if (mSessionChangeCallback != null) mSessionChangeCallback.onBell(session);
     }
 
     @Override
     public void onColorsChanged(TerminalSession session) {
+        if (mSessionPool.contains(session)) return;
         if (mSessionChangeCallback != null) mSessionChangeCallback.onColorsChanged(session);
     }
 
+    /** The background jobs which are running. Only to be used on the main thread. */
+    public List<BackgroundJob> getBackgroundJobs() {
+        return mJobScheduler.getRunningJobs();
+    }
+
+    /** The counters and queue metrics of the background jobs so far. Only to be used on the main thread. */
+    public BackgroundJobStats getBackgroundJobStats() {
+        BackgroundJobStats stats = new BackgroundJobStats();
+        mJobScheduler.getStats(stats);
+        return stats;
+    }
+
+    /** The most recently finished background jobs, oldest first. Only to be used on the main thread. */
+    public List<BackgroundJob> getFinishedBackgroundJobs() {
+        return mJobScheduler.getFinishedJobs();
+    }
+
     public void onBackgroundJobExited(final BackgroundJob task) {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                mBackgroundTasks.remove(task);
+                mJobScheduler.onJobExited(task);
             }
         });
     }
@@ -53,7 +53,7 @@ public final class TermuxViewClient implements TerminalViewClient {
     public boolean onKeyDown(int keyCode, KeyEvent e, TerminalSession currentSession) {
         if (handleVirtualKeys(keyCode, e, true)) return true;
 
-        if (keyCode == KeyEvent.KEYCODE_ENTER && !currentSession.isRunning()) {
+        if (keyCode == KeyEvent.KEYCODE_ENTER && currentSession.isFinished()) {
             mActivity.removeFinishedSession(currentSession);
             return true;
         } else if (e.isCtrlPressed() && e.isShiftPressed()) {
@@ -191,7 +191,7 @@ public final class TermuxViewClient implements TerminalViewClient {
             }
             return true;
         } else if (ctrlDown) {
-            if (codePoint == 106 /* Ctrl+j or \n */ && !session.isRunning()) {
+            if (codePoint == 106 /* Ctrl+j or \n */ && session.isFinished()) {
                 mActivity.removeFinishedSession(session);
                 return true;
             }
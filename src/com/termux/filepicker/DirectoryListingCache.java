@@ -0,0 +1,156 @@
+package com.termux.filepicker;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A cache of the non-hidden children of recently listed folders with the metadata shown for them, since the document UI
+ * queries the same folders over and over while browsing.
+ * <p/>
+ * A listing is used as long as the modification time of its folder is unchanged and no change to the folder or its
+ * children has been observed through the {@link FolderWatcher} since, in which case the listing is dropped and the
+ * {@link Listener} told, so that any open cursor on the folder can be refreshed.
+ */
+final class DirectoryListingCache {
+
+    /** The limit on the total number of cached children, see {@link LruCache#sizeOf}. */
+    private static final int MAX_CACHED_FILES = 16 * 1024;
+
+    interface Listener {
+        /** Called on a background thread when a cached listing of a folder has been dropped since it changed. */
+        void onDirectoryChanged(String path);
+    }
+
+    /** The metadata of a file, read with a single stat(2) instead of one for each of the {@link File} methods. */
+    static final class FileInfo {
+        final File mFile;
+        final boolean mIsDirectory;
+        final boolean mWritable;
+        final long mSize;
+        /** The modification time in milliseconds, as by {@link File#lastModified()}. */
+        final long mLastModified;
+        final String mMimeType;
+
+        private FileInfo(File file, StructStat stat) {
+            mFile = file;
+            mIsDirectory = OsConstants.S_ISDIR(stat.st_mode);
+            mWritable = isWritable(file);
+            mSize = stat.st_size;
+            mLastModified = stat.st_mtime * 1000L;
+            mMimeType = TermuxDocumentsProvider.getMimeType(file.getName(), mIsDirectory);
+        }
+
+        static FileInfo stat(File file) throws FileNotFoundException {
+            try {
+                return new FileInfo(file, Os.stat(file.getAbsolutePath()));
+            } catch (ErrnoException e) {
+                try {
+                    // Describe a dangling symlink by itself, like the File methods would:
+                    return new FileInfo(file, Os.lstat(file.getAbsolutePath()));
+                } catch (ErrnoException e2) {
+                    throw new FileNotFoundException(file.getAbsolutePath() + " not found");
+                }
+            }
+        }
+
+        private static boolean isWritable(File file) {
+            try {
+                return Os.access(file.getAbsolutePath(), OsConstants.W_OK);
+            } catch (ErrnoException e) {
+                return false;
+            }
+        }
+    }
+
+    private final class Listing implements FolderWatcher.Listener {
+        final String mPath;
+        final long mModificationTime;
+        final List<FileInfo> mChildren = new ArrayList<>();
+        /** Set when a change has been observed, possibly while the listing was still being read. */
+        volatile boolean mStale;
+
+        Listing(String path, long modificationTime) {
+            mPath = path;
+            mModificationTime = modificationTime;
+        }
+
+        @Override
+        public void onFolderEvent(String folderPath, int event, String name) {
+            if (mStale) return;
+            mStale = true;
+            invalidate(mPath);
+        }
+    }
+
+    private final Listener mListener;
+    private final FolderWatcher mFolderWatcher;
+    private final LruCache<String, Listing> mListings = new LruCache<String, Listing>(MAX_CACHED_FILES) {
+        @Override
+        protected int sizeOf(String key, Listing value) {
+            return value.mChildren.size() + 1;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Listing oldValue, Listing newValue) {
+            mFolderWatcher.unwatch(key, oldValue);
+        }
+    };
+
+    DirectoryListingCache(FolderWatcher folderWatcher, Listener listener) {
+        mFolderWatcher = folderWatcher;
+        mListener = listener;
+    }
+
+    /** Get the non-hidden children of a folder, listing and stat:ing them only if not cached. */
+    List<FileInfo> getChildren(File directory) throws FileNotFoundException {
+        final String path = directory.getAbsolutePath();
+        final long modificationTime;
+        try {
+            modificationTime = Os.stat(path).st_mtime;
+        } catch (ErrnoException e) {
+            throw new FileNotFoundException(path + " not found");
+        }
+
+        Listing listing = mListings.get(path);
+        if (listing != null && !listing.mStale && listing.mModificationTime == modificationTime) {
+            return Collections.unmodifiableList(listing.mChildren);
+        }
+
+        // Watch before listing to not miss any change made meanwhile:
+        listing = new Listing(path, modificationTime);
+        mFolderWatcher.watch(path, listing);
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(".")) continue;
+                try {
+                    listing.mChildren.add(FileInfo.stat(new File(directory, name)));
+                } catch (FileNotFoundException e) {
+                    // Removed after being listed.
+                }
+            }
+        }
+        if (listing.mStale) {
+            mFolderWatcher.unwatch(path, listing);
+        } else {
+            mListings.put(path, listing);
+        }
+        return Collections.unmodifiableList(listing.mChildren);
+    }
+
+    /** Drop the cached listing of a folder, if any, and tell the listener that it has changed. */
+    void invalidate(String path) {
+        mListings.remove(path);
+        mListener.onDirectoryChanged(path);
+    }
+
+}
@@ -0,0 +1,357 @@
+package com.termux.filepicker;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An index of the names of the files in a folder tree, so that {@link TermuxDocumentsProvider#querySearchDocuments} does
+ * not have to walk all of $HOME for every search.
+ * <p/>
+ * Every lower cased file name is split into trigrams (all substrings of three characters), and each trigram maps to the
+ * files whose names contain it. A search looks up the rarest trigram of the query and checks only the names of those
+ * files. The index is built on a background thread, kept up to date by watching each indexed folder through the
+ * {@link FolderWatcher} shared with the rest of the provider, and saved to a file, so that it can be used right away
+ * after a restart while it is rebuilt in the background.
+ * <p/>
+ * Hidden files and folders are not indexed. Symlinks are indexed by name but never followed, so that a link to a
+ * folder neither leaves the tree nor, when pointing back into it, makes the walk loop. All methods are thread safe.
+ */
+final class FileNameIndex {
+
+    private static final String LOG_TAG = "termux-index";
+
+    private static final int FORMAT_VERSION = 1;
+    /** The limit on watched folders, since each uses an inotify watch of which there is a limited number per user. */
+    private static final int MAX_WATCHED_FOLDERS = 4096;
+    /** How old an index with unwatched folders may get before a search rebuilds it. */
+    private static final long UNWATCHED_REBUILD_INTERVAL_MILLIS = 60 * 1000;
+
+    /** A growable list of file ids. */
+    private static final class Postings {
+        int[] mIds = new int[4];
+        int mSize;
+
+        void add(int id) {
+            if (mSize == mIds.length) {
+                int[] newIds = new int[mSize * 2];
+                System.arraycopy(mIds, 0, newIds, 0, mSize);
+                mIds = newIds;
+            }
+            mIds[mSize++] = id;
+        }
+    }
+
+    /** Updates the index with the changes in the watched folders. */
+    private final FolderWatcher.Listener mFolderListener = new FolderWatcher.Listener() {
+        @Override
+        public void onFolderEvent(String folderPath, int event, String name) {
+            if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                removeFolder(folderPath);
+                return;
+            }
+            if (name == null || name.startsWith(".")) return;
+            final String path = folderPath + "/" + name;
+            if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+                File file = new File(path);
+                if (isFolder(file)) {
+                    scanFolder(file);
+                } else {
+                    synchronized (FileNameIndex.this) {
+                        addFile(path);
+                    }
+                }
+            } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                synchronized (FileNameIndex.this) {
+                    if (!removeFile(path)) removeFolder(path);
+                }
+            }
+        }
+    };
+
+    private final File mRoot;
+    private final File mIndexFile;
+    private final FolderWatcher mFolderWatcher;
+
+    // The id of a file is its index in these lists. Removed files are set to null, and left in the postings until the
+    // index is compacted.
+    private final ArrayList<String> mPaths = new ArrayList<>();
+    private final ArrayList<String> mNames = new ArrayList<>();
+    private final HashMap<String, Integer> mIdsByPath = new HashMap<>();
+    private final HashMap<Long, Postings> mTrigrams = new HashMap<>();
+    private int mRemovedCount;
+
+    private final HashSet<String> mWatchedFolders = new HashSet<>();
+    /** If the index has been loaded or built, so that it can be searched. */
+    private boolean mReady;
+    private boolean mBuilding;
+    /** If some folders are not watched, so that the index needs to be rebuilt from time to time. */
+    private boolean mPartiallyWatched;
+    private long mBuiltAtMillis;
+
+    FileNameIndex(File root, File indexFile, FolderWatcher folderWatcher) {
+        mRoot = root;
+        mIndexFile = indexFile;
+        mFolderWatcher = folderWatcher;
+    }
+
+    /**
+     * Search for files whose names contain the query, ignoring case.
+     *
+     * @return the absolute paths of at most maxResults matching files, or null if the index is not ready yet, in which
+     * case it is being loaded or built in the background.
+     */
+    List<String> search(String query, int maxResults) {
+        synchronized (this) {
+            if (!mReady || (mPartiallyWatched && SystemClock.uptimeMillis() - mBuiltAtMillis > UNWATCHED_REBUILD_INTERVAL_MILLIS))
+                startBuilding();
+            if (!mReady) return null;
+        }
+
+        final String lowerQuery = query.toLowerCase(Locale.ROOT);
+        List<String> result = new ArrayList<>();
+        synchronized (this) {
+            if (lowerQuery.length() < 3) {
+                // Too short for trigrams, but checking every name in memory is still fast:
+                for (int id = 0; id < mNames.size() && result.size() < maxResults; id++) {
+                    String name = mNames.get(id);
+                    if (name != null && name.contains(lowerQuery)) result.add(mPaths.get(id));
+                }
+                return result;
+            }
+
+            Postings rarest = null;
+            for (int i = 0; i + 3 <= lowerQuery.length(); i++) {
+                Postings postings = mTrigrams.get(trigramKey(lowerQuery, i));
+                if (postings == null) return result;
+                if (rarest == null || postings.mSize < rarest.mSize) rarest = postings;
+            }
+            for (int i = 0; i < rarest.mSize && result.size() < maxResults; i++) {
+                final int id = rarest.mIds[i];
+                String name = mNames.get(id);
+                if (name != null && name.contains(lowerQuery)) result.add(mPaths.get(id));
+            }
+        }
+        return result;
+    }
+
+    /** Start loading the saved index if not ready, and building it anew, on a background thread. */
+    private synchronized void startBuilding() {
+        if (mBuilding) return;
+        mBuilding = true;
+        new Thread("TermuxFileIndex") {
+            @Override
+            public void run() {
+                final long startMillis = SystemClock.uptimeMillis();
+                boolean ready;
+                synchronized (FileNameIndex.this) {
+                    ready = mReady;
+                }
+                if (!ready && load()) {
+                    Log.i(LOG_TAG, "Loaded index of " + (mPaths.size() - mRemovedCount) + " files in "
+                        + (SystemClock.uptimeMillis() - startMillis) + " ms");
+                }
+                build();
+                save();
+                Log.i(LOG_TAG, "Indexed " + (mPaths.size() - mRemovedCount) + " files in " + mWatchedFolders.size()
+                    + " folders in " + (SystemClock.uptimeMillis() - startMillis) + " ms");
+            }
+        }.start();
+    }
+
+    /** Walk the tree and replace the index with what was found, watching all folders from then on. */
+    private void build() {
+        final List<String> files = new ArrayList<>();
+        final List<String> folders = new ArrayList<>();
+        walk(mRoot, files, folders);
+
+        synchronized (this) {
+            clear();
+            for (String path : files) addFile(path);
+            // Folders are watched after the walk, so changes during it are only picked up at the next build:
+            mPartiallyWatched = false;
+            for (String folder : folders) watchFolder(folder);
+            mReady = true;
+            mBuilding = false;
+            mBuiltAtMillis = SystemClock.uptimeMillis();
+        }
+    }
+
+    /** Index a new folder and all below it, as when created or moved into the tree. */
+    private void scanFolder(File folder) {
+        final List<String> files = new ArrayList<>();
+        final List<String> folders = new ArrayList<>();
+        walk(folder, files, folders);
+        synchronized (this) {
+            for (String path : files) addFile(path);
+            for (String path : folders) watchFolder(path);
+        }
+    }
+
+    /** Collect the non-hidden files and folders below a folder, not following symlinks. */
+    private static void walk(File start, List<String> files, List<String> folders) {
+        final ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.add(start);
+        while (!pending.isEmpty()) {
+            final File folder = pending.removeFirst();
+            folders.add(folder.getAbsolutePath());
+            File[] children = folder.listFiles();
+            if (children == null) continue;
+            for (File child : children) {
+                if (child.getName().startsWith(".")) continue;
+                if (isFolder(child)) {
+                    pending.add(child);
+                } else {
+                    files.add(child.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /** If a file is a folder itself, as opposed to a symlink to one which {@link File#isDirectory()} follows. */
+    private static boolean isFolder(File file) {
+        try {
+            return OsConstants.S_ISDIR(Os.lstat(file.getAbsolutePath()).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private void watchFolder(String path) {
+        if (mWatchedFolders.contains(path)) return;
+        if (mWatchedFolders.size() >= MAX_WATCHED_FOLDERS) {
+            mPartiallyWatched = true;
+            return;
+        }
+        mFolderWatcher.watch(path, mFolderListener);
+        mWatchedFolders.add(path);
+    }
+
+    private void addFile(String path) {
+        if (mIdsByPath.containsKey(path)) return;
+        final int id = mPaths.size();
+        final String name = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+        mPaths.add(path);
+        mNames.add(name);
+        mIdsByPath.put(path, id);
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            final long key = trigramKey(name, i);
+            // Add each file once to a trigram which occurs more than once in its name:
+            if (name.lastIndexOf(name.substring(i, i + 3), i - 1) != -1) continue;
+            Postings postings = mTrigrams.get(key);
+            if (postings == null) {
+                postings = new Postings();
+                mTrigrams.put(key, postings);
+            }
+            postings.add(id);
+        }
+    }
+
+    /** Remove a file from the index, returning false if it was not indexed. */
+    private boolean removeFile(String path) {
+        Integer id = mIdsByPath.remove(path);
+        if (id == null) return false;
+        mPaths.set(id, null);
+        mNames.set(id, null);
+        if (++mRemovedCount > 1024 && mRemovedCount > mPaths.size() / 2) compact();
+        return true;
+    }
+
+    /** Remove all files below a folder and stop watching it and its sub folders. */
+    private synchronized void removeFolder(String folderPath) {
+        final String prefix = folderPath + "/";
+        List<String> removed = new ArrayList<>();
+        for (String path : mIdsByPath.keySet()) if (path.startsWith(prefix)) removed.add(path);
+        for (String path : removed) removeFile(path);
+        Iterator<String> folders = mWatchedFolders.iterator();
+        while (folders.hasNext()) {
+            String path = folders.next();
+            if (path.equals(folderPath) || path.startsWith(prefix)) {
+                mFolderWatcher.unwatch(path, mFolderListener);
+                folders.remove();
+            }
+        }
+    }
+
+    /** Rebuild the index without the removed files. */
+    private void compact() {
+        List<String> paths = new ArrayList<>(mIdsByPath.keySet());
+        mPaths.clear();
+        mNames.clear();
+        mIdsByPath.clear();
+        mTrigrams.clear();
+        mRemovedCount = 0;
+        for (String path : paths) addFile(path);
+    }
+
+    private void clear() {
+        mPaths.clear();
+        mNames.clear();
+        mIdsByPath.clear();
+        mTrigrams.clear();
+        mRemovedCount = 0;
+        for (String path : mWatchedFolders) mFolderWatcher.unwatch(path, mFolderListener);
+        mWatchedFolders.clear();
+    }
+
+    private static long trigramKey(String s, int index) {
+        return ((long) s.charAt(index) << 32) | ((long) s.charAt(index + 1) << 16) | s.charAt(index + 2);
+    }
+
+    /** Load the saved index, which is searchable but not watched until built anew. */
+    private boolean load() {
+        if (!mIndexFile.isFile()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+            if (in.readInt() != FORMAT_VERSION) return false;
+            final int count = in.readInt();
+            List<String> paths = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) paths.add(in.readUTF());
+            synchronized (this) {
+                if (mReady) return false;
+                for (String path : paths) addFile(path);
+                mReady = true;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to load saved index", e);
+            return false;
+        }
+    }
+
+    private void save() {
+        List<String> paths;
+        synchronized (this) {
+            paths = new ArrayList<>(mIdsByPath.keySet());
+        }
+        File tmpFile = new File(mIndexFile.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(paths.size());
+            for (String path : paths) out.writeUTF(path);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to save index", e);
+            return;
+        }
+        if (!tmpFile.renameTo(mIndexFile)) Log.w(LOG_TAG, "Unable to rename saved index");
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.termux.filepicker;
+
+import android.os.FileObserver;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shares a single {@link FileObserver} per folder between everything in the provider which watches folders.
+ * <p/>
+ * Before Android 10 all {@link FileObserver}s on the same path share one inotify watch, so that starting a second one
+ * replaces the first and stopping either one stops both. Watching a folder through this class instead adds a listener
+ * to the observer of that folder, which is stopped when the last listener is removed. All methods are thread safe.
+ */
+final class FolderWatcher {
+
+    /** The union of the events needed by the listeners, which have to ignore the ones they are not interested in. */
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+        | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB | FileObserver.DELETE_SELF
+        | FileObserver.MOVE_SELF;
+
+    interface Listener {
+        /**
+         * Called on the observer thread for a change in a watched folder.
+         *
+         * @param event the {@link FileObserver} event, without flags outside of {@link FileObserver#ALL_EVENTS}.
+         * @param name  the name of the changed file in the folder, or null if the change is to the folder itself.
+         */
+        void onFolderEvent(String folderPath, int event, String name);
+    }
+
+    private static final class Watch extends FileObserver {
+        final String mPath;
+        final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+        Watch(String path) {
+            super(path, OBSERVED_EVENTS);
+            mPath = path;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            event &= FileObserver.ALL_EVENTS;
+            if (event == 0) return;
+            for (Listener listener : mListeners) listener.onFolderEvent(mPath, event, name);
+        }
+    }
+
+    private final HashMap<String, Watch> mWatches = new HashMap<>();
+
+    /** Start calling the listener for changes in a folder, unless already watching the folder with the listener. */
+    synchronized void watch(String path, Listener listener) {
+        Watch watch = mWatches.get(path);
+        if (watch == null) {
+            watch = new Watch(path);
+            mWatches.put(path, watch);
+            watch.startWatching();
+        }
+        if (!watch.mListeners.contains(listener)) watch.mListeners.add(listener);
+    }
+
+    /** Stop calling the listener for changes in a folder, and stop watching the folder if it has no listener left. */
+    synchronized void unwatch(String path, Listener listener) {
+        Watch watch = mWatches.get(path);
+        if (watch == null) return;
+        watch.mListeners.remove(listener);
+        if (watch.mListeners.isEmpty()) {
+            watch.stopWatching();
+            mWatches.remove(path);
+        }
+    }
+
+}
@@ -6,12 +6,14 @@ import android.database.MatrixCursor;
 import android.graphics.Point;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
 import android.webkit.MimeTypeMap;
 
 import com.termux.R;
+import com.termux.app.FileTreeWalker;
 import com.termux.app.TermuxService;
 
 import java.io.File;
@@ -19,6 +21,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * A document provider for the Storage Access Framework which exposes the files in the
@@ -33,6 +36,8 @@ import java.util.LinkedList;
  */
 public class TermuxDocumentsProvider extends DocumentsProvider {
 
+    private static final String AUTHORITY = "com.termux.documents";
+
     private static final String ALL_MIME_TYPES = "*/*";
 
     private static final File BASE_DIR = new File(TermuxService.HOME_PATH);
@@ -62,6 +67,10 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
         Document.COLUMN_SIZE
     };
 
+    private FileNameIndex mFileNameIndex;
+    private DirectoryListingCache mListingCache;
+    private ThumbnailCache mThumbnailCache;
+
     @Override
     public Cursor queryRoots(String[] projection) throws FileNotFoundException {
         final MatrixCursor result = new MatrixCursor(projection != null ? projection : DEFAULT_ROOT_PROJECTION);
@@ -90,11 +99,12 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
     public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder) throws FileNotFoundException {
         final MatrixCursor result = new MatrixCursor(projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION);
         final File parent = getFileForDocId(parentDocumentId);
-        for (File file : parent.listFiles()) {
-            if (!file.getName().startsWith(".")) {
-                includeFile(result, null, file);
-            }
+        for (DirectoryListingCache.FileInfo info : mListingCache.getChildren(parent)) {
+            includeFileInfo(result, getDocIdForFile(info.mFile), info);
         }
+        // Let the document UI refresh the listing when told by the cache that the folder has changed:
+        //noinspection ConstantConditions
+        result.setNotificationUri(getContext().getContentResolver(), DocumentsContract.buildChildDocumentsUri(AUTHORITY, parentDocumentId));
         return result;
     }
 
@@ -107,22 +117,37 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
 
     @Override
     public AssetFileDescriptor openDocumentThumbnail(String documentId, Point sizeHint, CancellationSignal signal) throws FileNotFoundException {
-        final File file = getFileForDocId(documentId);
+        final File file = mThumbnailCache.getThumbnail(getFileForDocId(documentId), sizeHint, signal);
         final ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
         return new AssetFileDescriptor(pfd, 0, file.length());
     }
 
     @Override
     public boolean onCreate() {
+        final FolderWatcher folderWatcher = new FolderWatcher();
+        mFileNameIndex = new FileNameIndex(BASE_DIR, new File(getContext().getCacheDir(), "filename-index"), folderWatcher);
+        mThumbnailCache = new ThumbnailCache(new File(getContext().getCacheDir(), "thumbnails"));
+        mListingCache = new DirectoryListingCache(folderWatcher, new DirectoryListingCache.Listener() {
+            @Override
+            public void onDirectoryChanged(String path) {
+                //noinspection ConstantConditions
+                getContext().getContentResolver().notifyChange(DocumentsContract.buildChildDocumentsUri(AUTHORITY, getDocIdForFile(new File(path))), null, false);
+            }
+        });
         return true;
     }
 
     @Override
     public void deleteDocument(String documentId) throws FileNotFoundException {
         File file = getFileForDocId(documentId);
-        if (!file.delete()) {
-            throw new FileNotFoundException("Failed to delete document with id " + documentId);
+        if (file.equals(BASE_DIR)) throw new FileNotFoundException("Not deleting the root document " + documentId);
+        try {
+            // Deletes folders with all their content, in parallel for large trees:
+            new FileTreeWalker(null).delete(file);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to delete document with id " + documentId + ": " + e.getMessage());
         }
+        mListingCache.invalidate(file.getParentFile().getAbsolutePath());
     }
 
     @Override
@@ -135,6 +160,18 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
     public Cursor querySearchDocuments(String rootId, String query, String[] projection) throws FileNotFoundException {
         final MatrixCursor result = new MatrixCursor(projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION);
         final File parent = getFileForDocId(rootId);
+        final int MAX_SEARCH_RESULTS = 50;
+
+        // Search the index of $HOME when it is ready, which happens in the background after the first search:
+        final List<String> indexedPaths = mFileNameIndex.search(query, MAX_SEARCH_RESULTS);
+        if (indexedPaths != null) {
+            final String parentPrefix = parent.getAbsolutePath() + "/";
+            for (String path : indexedPaths) {
+                final File file = new File(path);
+                if (path.startsWith(parentPrefix) && file.exists()) includeFile(result, null, file);
+            }
+            return result;
+        }
 
         // This example implementation searches file names for the query and doesn't rank search
         // results, so we can stop as soon as we find a sufficient number of matches.  Other
@@ -143,7 +180,6 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
         final LinkedList<File> pending = new LinkedList<>();
         pending.add(parent);
 
-        final int MAX_SEARCH_RESULTS = 50;
         while (!pending.isEmpty() && result.getCount() < MAX_SEARCH_RESULTS) {
             final File file = pending.removeFirst();
             // Avoid folders outside the $HOME folders linked in to symlinks (to avoid e.g. search
@@ -189,10 +225,13 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
     }
 
     private static String getMimeType(File file) {
-        if (file.isDirectory()) {
+        return getMimeType(file.getName(), file.isDirectory());
+    }
+
+    static String getMimeType(String name, boolean isDirectory) {
+        if (isDirectory) {
             return Document.MIME_TYPE_DIR;
         } else {
-            final String name = file.getName();
             final int lastDot = name.lastIndexOf('.');
             if (lastDot >= 0) {
                 final String extension = name.substring(lastDot + 1).toLowerCase();
@@ -217,24 +256,31 @@ public class TermuxDocumentsProvider extends DocumentsProvider {
         } else {
             file = getFileForDocId(docId);
         }
+        includeFileInfo(result, docId, DirectoryListingCache.FileInfo.stat(file));
+    }
 
+    /**
+     * Add a representation of a file to a cursor given its already read metadata.
+     */
+    private void includeFileInfo(MatrixCursor result, String docId, DirectoryListingCache.FileInfo info) {
         int flags = 0;
-        if (file.isDirectory()) {
-            if (file.isDirectory() && file.canWrite()) flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
-        } else if (file.canWrite()) {
+        if (info.mIsDirectory) {
+            if (info.mWritable) flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
+            if (info.mWritable && !info.mFile.equals(BASE_DIR)) flags |= Document.FLAG_SUPPORTS_DELETE;
+        } else if (info.mWritable) {
             flags |= Document.FLAG_SUPPORTS_WRITE | Document.FLAG_SUPPORTS_DELETE;
         }
 
-        final String displayName = file.getName();
-        final String mimeType = getMimeType(file);
+        final String displayName = info.mFile.getName();
+        final String mimeType = info.mMimeType;
         if (mimeType.startsWith("image/")) flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
 
         final MatrixCursor.RowBuilder row = result.newRow();
         row.add(Document.COLUMN_DOCUMENT_ID, docId);
         row.add(Document.COLUMN_DISPLAY_NAME, displayName);
-        row.add(Document.COLUMN_SIZE, file.length());
+        row.add(Document.COLUMN_SIZE, info.mSize);
         row.add(Document.COLUMN_MIME_TYPE, mimeType);
-        row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
+        row.add(Document.COLUMN_LAST_MODIFIED, info.mLastModified);
         row.add(Document.COLUMN_FLAGS, flags);
         row.add(Document.COLUMN_ICON, R.mipmap.ic_launcher);
     }
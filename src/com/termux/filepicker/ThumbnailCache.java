@@ -0,0 +1,293 @@
+package com.termux.filepicker;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thumbnails of images for {@link TermuxDocumentsProvider#openDocumentThumbnail}, decoded at a reduced size and stored
+ * in a folder in the cache dir so that browsing a folder of photos neither reads nor decodes the full images again.
+ * <p/>
+ * A thumbnail is identified by the path, modification time and size of its image together with the size it was made
+ * for, rounded up to a power of two, so a changed image gets a new thumbnail and the old one is eventually removed when
+ * the cache grows past {@link #MAX_CACHE_BYTES}, oldest used first.
+ */
+final class ThumbnailCache {
+
+    private static final String LOG_TAG = "termux-thumbnails";
+
+    private static final long MAX_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int MIN_THUMBNAIL_SIZE = 64;
+    private static final int MAX_THUMBNAIL_SIZE = 1024;
+    private static final int MAX_CONCURRENT_DECODES = 2;
+    /** The limit on queued thumbnails, which are mostly cancelled ones when scrolling quickly through a folder. */
+    private static final int MAX_QUEUED_DECODES = 64;
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * A thumbnail being made, shared by all concurrent requests for it. Each request waits for it on its own, so that a
+     * cancelled request stops waiting without affecting the others, and the work is only cancelled when no request is
+     * waiting for it anymore.
+     */
+    private final class PendingThumbnail implements Runnable {
+        final String mKey;
+        final File mImage;
+        final int mTargetSize;
+        final File mThumbnail;
+        Future<?> mFuture;
+        /** The number of requests waiting for the thumbnail. Guarded by {@link #mPending}. */
+        int mWaiters;
+        // Guarded by this:
+        boolean mDone;
+        File mResult;
+        Exception mError;
+
+        PendingThumbnail(String key, File image, int targetSize, File thumbnail) {
+            mKey = key;
+            mImage = image;
+            mTargetSize = targetSize;
+            mThumbnail = thumbnail;
+        }
+
+        @Override
+        public void run() {
+            File result = null;
+            Exception error = null;
+            try {
+                result = makeThumbnail(mImage, mTargetSize, mThumbnail);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            synchronized (mPending) {
+                if (mPending.get(mKey) == this) mPending.remove(mKey);
+            }
+            synchronized (this) {
+                mDone = true;
+                mResult = result;
+                mError = error;
+                notifyAll();
+            }
+        }
+    }
+
+    private final File mDirectory;
+    private final ThreadPoolExecutor mExecutor;
+    /** Thumbnails being made, by key, so that concurrent requests for the same one share the work. */
+    private final HashMap<String, PendingThumbnail> mPending = new HashMap<>();
+    /** The total size of the cached thumbnails, or -1 until first computed. */
+    private long mCacheBytes = -1;
+
+    ThumbnailCache(File directory) {
+        mDirectory = directory;
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_DECODES, MAX_CONCURRENT_DECODES, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED_DECODES), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TermuxThumbnail-" + mCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        // Do not keep idle threads around when not browsing:
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get a thumbnail of an image no larger than needed for the size hint, making it if not cached. Blocks until made.
+     *
+     * @throws OperationCanceledException if the signal is cancelled first.
+     */
+    File getThumbnail(final File image, Point sizeHint, CancellationSignal signal) throws FileNotFoundException {
+        final int targetSize = getTargetSize(sizeHint);
+        final String key = getKey(image, targetSize);
+        final File thumbnail = new File(mDirectory, key);
+        if (thumbnail.isFile()) {
+            // Keep track of use for trimming:
+            //noinspection ResultOfMethodCallIgnored
+            thumbnail.setLastModified(System.currentTimeMillis());
+            return thumbnail;
+        }
+
+        final PendingThumbnail pending = acquire(key, image, targetSize);
+        try {
+            if (signal != null) {
+                signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        synchronized (pending) {
+                            pending.notifyAll();
+                        }
+                    }
+                });
+            }
+            synchronized (pending) {
+                while (!pending.mDone) {
+                    if (signal != null && signal.isCanceled()) throw new OperationCanceledException();
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        throw new OperationCanceledException();
+                    }
+                }
+                if (pending.mError == null) return pending.mResult;
+                Log.w(LOG_TAG, "Unable to make thumbnail of " + image.getAbsolutePath(), pending.mError);
+                throw new FileNotFoundException("Unable to make thumbnail of " + image.getAbsolutePath());
+            }
+        } finally {
+            if (signal != null) signal.setOnCancelListener(null);
+            release(pending);
+        }
+    }
+
+    /** Get the thumbnail being made for a key, starting to make it if not already, and count the caller as waiting. */
+    private PendingThumbnail acquire(String key, File image, int targetSize) throws FileNotFoundException {
+        synchronized (mPending) {
+            PendingThumbnail pending = mPending.get(key);
+            if (pending == null) {
+                pending = new PendingThumbnail(key, image, targetSize, new File(mDirectory, key));
+                try {
+                    pending.mFuture = mExecutor.submit(pending);
+                } catch (RejectedExecutionException e) {
+                    // Drop cancelled thumbnails from the queue and try once more:
+                    mExecutor.purge();
+                    try {
+                        pending.mFuture = mExecutor.submit(pending);
+                    } catch (RejectedExecutionException e2) {
+                        throw new FileNotFoundException("Too many thumbnails requested");
+                    }
+                }
+                mPending.put(key, pending);
+            }
+            pending.mWaiters++;
+            return pending;
+        }
+    }
+
+    /** Stop counting a caller as waiting for a thumbnail, cancelling the work if it was the last one. */
+    private void release(PendingThumbnail pending) {
+        synchronized (mPending) {
+            if (--pending.mWaiters > 0) return;
+            // A thumbnail cancelled before it started never runs, so it has to be forgotten here:
+            if (mPending.get(pending.mKey) == pending) mPending.remove(pending.mKey);
+            pending.mFuture.cancel(true);
+        }
+    }
+
+    private File makeThumbnail(File image, int targetSize, File thumbnail) throws IOException {
+        final String path = image.getAbsolutePath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) throw new IOException("Not a decodable image");
+
+        // Decode at the largest power of two reduction which still leaves the image no smaller than the target:
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2) >= targetSize) {
+            options.inSampleSize *= 2;
+        }
+        checkInterrupted();
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null) throw new IOException("Unable to decode image");
+        checkInterrupted();
+
+        final int largestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largestSide > targetSize) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, bitmap.getWidth() * targetSize / largestSide),
+                Math.max(1, bitmap.getHeight() * targetSize / largestSide), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.mkdirs();
+        final File tmpFile = new File(thumbnail.getAbsolutePath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            // Keep transparency of e.g. icons, at the cost of a larger thumbnail:
+            if (!bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out))
+                throw new IOException("Unable to compress thumbnail");
+        } finally {
+            bitmap.recycle();
+        }
+        if (!tmpFile.renameTo(thumbnail)) throw new IOException("Unable to rename " + tmpFile.getAbsolutePath());
+        onThumbnailAdded(thumbnail.length());
+        return thumbnail;
+    }
+
+    private static void checkInterrupted() throws IOException {
+        if (Thread.interrupted()) throw new IOException("Cancelled");
+    }
+
+    /** Account for a new thumbnail and remove the least recently used ones if the cache has grown too large. */
+    private synchronized void onThumbnailAdded(long bytes) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        if (mCacheBytes < 0) {
+            mCacheBytes = 0;
+            for (File file : files) mCacheBytes += file.length();
+        } else {
+            mCacheBytes += bytes;
+        }
+        if (mCacheBytes <= MAX_CACHE_BYTES) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        // Trim to three quarters of the limit so that this is not done for every new thumbnail:
+        for (int i = 0; i < files.length && mCacheBytes > MAX_CACHE_BYTES * 3 / 4; i++) {
+            if (files[i].getName().endsWith(".tmp")) continue;
+            final long length = files[i].length();
+            if (files[i].delete()) mCacheBytes -= length;
+        }
+    }
+
+    /** The size of the largest side of a thumbnail for the size hint, rounded up to a power of two. */
+    private static int getTargetSize(Point sizeHint) {
+        final int requested = sizeHint == null ? MIN_THUMBNAIL_SIZE : Math.max(sizeHint.x, sizeHint.y);
+        int size = MIN_THUMBNAIL_SIZE;
+        while (size < requested && size < MAX_THUMBNAIL_SIZE) size *= 2;
+        return size;
+    }
+
+    private static String getKey(File image, int targetSize) throws FileNotFoundException {
+        final long lastModified = image.lastModified();
+        if (lastModified == 0) throw new FileNotFoundException(image.getAbsolutePath() + " not found");
+        final String key = image.getAbsolutePath() + '\0' + lastModified + '\0' + image.length() + '\0' + targetSize;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) result.append(String.format("%02x", b & 0xFF));
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}